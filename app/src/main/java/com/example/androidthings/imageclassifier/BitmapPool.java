@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of mutable ARGB_8888 bitmaps that decoders can reuse through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating a new bitmap
+ * for every frame.
+ */
+public class BitmapPool {
+
+    private final int capacity;
+    private final ArrayDeque<Bitmap> free;
+
+    public BitmapPool(int capacity) {
+        this.capacity = capacity;
+        this.free = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Return a free bitmap of the given size, or a new one if none is available.
+     */
+    public synchronized Bitmap acquire(int width, int height) {
+        Iterator<Bitmap> it = free.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                it.remove();
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, Config.ARGB_8888);
+    }
+
+    /**
+     * Hand a bitmap back once nobody reads it anymore. Bitmaps beyond the pool capacity are
+     * recycled.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || free.contains(bitmap)) {
+            return;
+        }
+        if (free.size() >= capacity) {
+            free.pollFirst().recycle();
+        }
+        free.addLast(bitmap);
+    }
+}
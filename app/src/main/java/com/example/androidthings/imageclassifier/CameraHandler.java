@@ -31,6 +31,7 @@ import android.media.ImageReader;
 import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 
 import java.util.Collections;
@@ -38,11 +39,27 @@ import java.util.Collections;
 public class CameraHandler {
     private static final String TAG = CameraHandler.class.getSimpleName();
 
-    private static final int MAX_IMAGES = 1;
+    // Two buffers, so the camera can fill one while the newest frame is being read.
+    private static final int MAX_IMAGES = 2;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private boolean initialized;
 
+    /** Whether a still capture was requested before the session was configured. */
+    private boolean mCapturePending;
+
+    /** Target frame rate of the repeating request, or 0 when not streaming. */
+    private int mStreamingTargetFps;
+
+    /** Frame rate ranges the auto-exposure routine supports, or null if unknown. */
+    private Range<Integer>[] mAvailableFpsRanges;
+
+    /** Whether image timestamps are on the {@code elapsedRealtimeNanos()} clock. */
+    private boolean mTimestampRealtime;
+
+    /** Rate at which the camera actually delivers frames while streaming. */
+    private final FrameRateMeter mStreamingRate = new FrameRateMeter();
+
     /**
      * An {@link ImageReader} that handles still image capture.
      */
@@ -60,12 +77,25 @@ public class CameraHandler {
         return InstanceHolder.mCamera;
     }
 
+    /**
+     * Initialize the camera device, capturing JPEG images
+     */
+    public void initializeCamera(Context context, int previewWidth, int previewHeight,
+                                 Handler backgroundHandler,
+                                 ImageReader.OnImageAvailableListener imageAvailableListener) {
+        initializeCamera(context, previewWidth, previewHeight, ImageFormat.JPEG,
+                backgroundHandler, imageAvailableListener);
+    }
+
     /**
      * Initialize the camera device
+     *
+     * @param imageFormat {@link ImageFormat#JPEG} or {@link ImageFormat#YUV_420_888}. YUV
+     *                    frames skip the hardware JPEG encoder and the software decoder.
      */
     @SuppressLint("MissingPermission")
     public void initializeCamera(Context context, int previewWidth, int previewHeight,
-                                 Handler backgroundHandler,
+                                 int imageFormat, Handler backgroundHandler,
                                  ImageReader.OnImageAvailableListener imageAvailableListener) {
         if (initialized) {
             throw new IllegalStateException(
@@ -86,9 +116,20 @@ public class CameraHandler {
             return;
         }
         Log.d(TAG, "Using camera id " + camIds[0]);
+        try {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(camIds[0]);
+            mAvailableFpsRanges = characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            Integer timestampSource =
+                    characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            mTimestampRealtime = timestampSource != null && timestampSource
+                    == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Cannot get the camera characteristics", e);
+        }
 
         // Initialize the image processor
-        mImageReader = ImageReader.newInstance(previewWidth, previewHeight, ImageFormat.JPEG,
+        mImageReader = ImageReader.newInstance(previewWidth, previewHeight, imageFormat,
                 MAX_IMAGES);
         mImageReader.setOnImageAvailableListener(imageAvailableListener, backgroundHandler);
 
@@ -101,14 +142,71 @@ public class CameraHandler {
     }
 
     /**
-     * Begin a still image capture
+     * Begin a still image capture. The capture runs on the session that is kept open for the
+     * lifetime of the camera, so it does not pay for session setup.
      */
     public void takePicture() {
         if (mCameraDevice == null) {
             Log.w(TAG, "Cannot capture image. Camera not initialized.");
             return;
         }
-        // Create a CameraCaptureSession for capturing still images.
+        if (mCaptureSession == null) {
+            // The capture will be triggered as soon as the session is configured.
+            mCapturePending = true;
+            return;
+        }
+        triggerImageCapture();
+    }
+
+    /**
+     * Continuously stream frames to the image reader until {@link #stopStreaming()}.
+     *
+     * @param targetFps rate the camera is asked to deliver frames at. Consumers should still
+     *                  drop frames they cannot keep up with.
+     */
+    public void startStreaming(int targetFps) {
+        mStreamingTargetFps = targetFps;
+        mStreamingRate.reset();
+        if (mCaptureSession != null) {
+            startRepeatingRequest();
+        }
+    }
+
+    public void stopStreaming() {
+        mStreamingTargetFps = 0;
+        if (mCaptureSession != null) {
+            try {
+                mCaptureSession.stopRepeating();
+            } catch (CameraAccessException cae) {
+                Log.e(TAG, "Cannot stop streaming", cae);
+            }
+        }
+    }
+
+    /**
+     * @return whether {@link android.media.Image#getTimestamp()} is on the
+     * {@link android.os.SystemClock#elapsedRealtimeNanos()} clock, so it can be compared with
+     * the time of an event. Otherwise it only orders frames.
+     */
+    public boolean isTimestampRealtime() {
+        return mTimestampRealtime;
+    }
+
+    public boolean isStreaming() {
+        return mStreamingTargetFps > 0;
+    }
+
+    /**
+     * @return frames per second currently delivered by the camera while streaming.
+     */
+    public float getStreamingFps() {
+        return mStreamingRate.getFps();
+    }
+
+    /**
+     * Create the session shared by every capture, once the camera is open.
+     */
+    private void createCaptureSession() {
         try {
             mCameraDevice.createCaptureSession(
                     Collections.singletonList(mImageReader.getSurface()),
@@ -119,6 +217,52 @@ public class CameraHandler {
         }
     }
 
+    private void startRepeatingRequest() {
+        try {
+            final CaptureRequest.Builder builder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(mImageReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            Range<Integer> fpsRange = chooseFpsRange(mStreamingTargetFps);
+            if (fpsRange != null) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
+            mCaptureSession.setRepeatingRequest(builder.build(), mStreamingCallback, null);
+            Log.d(TAG, "Streaming at a target of " + mStreamingTargetFps + " fps, range "
+                    + fpsRange);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            Log.e(TAG, "Cannot start streaming", e);
+        }
+    }
+
+    /**
+     * Pick the supported range closest to {@code targetFps}: the narrowest one containing it,
+     * or else the one with the nearest bound. Cameras reject ranges they do not list.
+     *
+     * @return null if the camera did not report its ranges, leaving the choice to it.
+     */
+    private Range<Integer> chooseFpsRange(int targetFps) {
+        if (mAvailableFpsRanges == null) {
+            return null;
+        }
+        Range<Integer> best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+        for (Range<Integer> range : mAvailableFpsRanges) {
+            int lower = range.getLower();
+            int upper = range.getUpper();
+            int distance = targetFps < lower ? lower - targetFps
+                    : (targetFps > upper ? targetFps - upper : 0);
+            int width = upper - lower;
+            if (distance < bestDistance || (distance == bestDistance && width < bestWidth)) {
+                best = range;
+                bestDistance = distance;
+                bestWidth = width;
+            }
+        }
+        return best;
+    }
+
     /**
      * Execute a new capture request within the active session
      */
@@ -136,6 +280,7 @@ public class CameraHandler {
     }
 
     private void closeCaptureSession() {
+        mCapturePending = false;
         if (mCaptureSession != null) {
             try {
                 mCaptureSession.close();
@@ -194,6 +339,13 @@ public class CameraHandler {
             for (int effect : effects) {
                 Log.d(TAG, "Effect available: " + effect);
             }
+            Range<Integer>[] fpsRanges = characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            if (fpsRanges != null) {
+                for (Range<Integer> range : fpsRanges) {
+                    Log.d(TAG, "Target fps range available: " + range);
+                }
+            }
         } catch (CameraAccessException e) {
             Log.d(TAG, "Cam access exception getting characteristics.");
         }
@@ -208,6 +360,7 @@ public class CameraHandler {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             Log.d(TAG, "Opened camera.");
             mCameraDevice = cameraDevice;
+            createCaptureSession();
         }
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
@@ -239,9 +392,15 @@ public class CameraHandler {
                     if (mCameraDevice == null) {
                         return;
                     }
-                    // When the session is ready, we start capture.
+                    // The session stays open; captures requested meanwhile run now.
                     mCaptureSession = cameraCaptureSession;
-                    triggerImageCapture();
+                    if (mStreamingTargetFps > 0) {
+                        startRepeatingRequest();
+                    }
+                    if (mCapturePending) {
+                        mCapturePending = false;
+                        triggerImageCapture();
+                    }
                 }
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
@@ -264,9 +423,20 @@ public class CameraHandler {
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    session.close();
-                    mCaptureSession = null;
-                    Log.d(TAG, "CaptureSession closed");
+                    Log.d(TAG, "Capture completed");
+                }
+            };
+
+    /**
+     * Callback of the repeating request, used to measure the streaming frame rate
+     */
+    private final CameraCaptureSession.CaptureCallback mStreamingCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    mStreamingRate.tick();
                 }
             };
 
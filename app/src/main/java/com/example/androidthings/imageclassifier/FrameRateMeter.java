@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+import android.os.SystemClock;
+
+/**
+ * Measures the rate of a recurring event as an exponentially weighted moving average of the
+ * interval between events.
+ */
+public class FrameRateMeter {
+
+    /** Weight of the newest interval in the average. */
+    private static final float SMOOTHING = 0.1f;
+
+    private long lastEventNanos = -1;
+    private float averageIntervalNanos = -1;
+    private long count;
+
+    /**
+     * Record one event.
+     */
+    public synchronized void tick() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (lastEventNanos >= 0) {
+            long interval = now - lastEventNanos;
+            averageIntervalNanos = averageIntervalNanos < 0 ? interval
+                    : averageIntervalNanos + SMOOTHING * (interval - averageIntervalNanos);
+        }
+        lastEventNanos = now;
+        count++;
+    }
+
+    /**
+     * @return events per second, or 0 before two events have been recorded.
+     */
+    public synchronized float getFps() {
+        return averageIntervalNanos <= 0 ? 0f : 1e9f / averageIntervalNanos;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void reset() {
+        lastEventNanos = -1;
+        averageIntervalNanos = -1;
+    }
+}
@@ -16,14 +16,14 @@
 package com.example.androidthings.imageclassifier;
 
 import android.app.Activity;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
@@ -35,47 +35,44 @@ import android.widget.RadioButton;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 
+import com.example.androidthings.imageclassifier.classifier.ClassifierOptions;
+import com.example.androidthings.imageclassifier.classifier.ModelHolder;
+import com.example.androidthings.imageclassifier.classifier.ModelManifest;
 import com.example.androidthings.imageclassifier.classifier.Recognition;
 import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
 import com.example.androidthings.imageclassifier.cloud.iotcore.CloudIotOptions;
 import com.example.androidthings.imageclassifier.cloud.iotcore.MQTTPublisher;
-import com.example.androidthings.imageclassifier.cloud.iotcore.MqttAuthentication;
+import com.example.androidthings.imageclassifier.cloud.iotcore.MqttConnectionManager;
+import com.example.androidthings.imageclassifier.cloud.iotcore.ModelConfig;
+import com.example.androidthings.imageclassifier.cloud.storage.GcsClient;
+import com.example.androidthings.imageclassifier.cloud.storage.ModelDownloader;
+import com.example.androidthings.imageclassifier.cloud.storage.ModelStore;
+import com.example.androidthings.imageclassifier.pipeline.Frame;
+import com.example.androidthings.imageclassifier.pipeline.FramePool;
+import com.example.androidthings.imageclassifier.pipeline.PipelineStage;
+import com.example.androidthings.imageclassifier.pipeline.PreCaptureRing;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.example.androidthings.imageclassifier.cloud.pubsub.CloudPublisher;
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.InputStreamContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson.JacksonFactory;
-import com.google.api.services.storage.StorageScopes;
-import com.google.api.services.storage.model.StorageObject;
-import com.google.api.services.storage.Storage;
-
-
-import java.io.ByteArrayOutputStream;
+
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URLConnection;
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ImageClassifierActivity extends Activity implements ImageReader.OnImageAvailableListener {
     private static final String GCS_KEY_FILE = "sa-key.p12";
@@ -93,11 +90,39 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     private static final int PREVIEW_IMAGE_HEIGHT = 480;
     private static final int TF_INPUT_IMAGE_WIDTH = 224;
     private static final int TF_INPUT_IMAGE_HEIGHT = 224;
-    private static Storage sStorage;
-    private static File gcsKeyFile;
+    /*
+     * Format of captured frames. ImageFormat.YUV_420_888 feeds the camera planes straight into
+     * the classifier and only encodes a JPEG when an image is sent to the cloud.
+     */
+    private static final int CAPTURE_IMAGE_FORMAT = ImageFormat.JPEG;
+    /*
+     * When above 0, frames are streamed from a repeating request and classified continuously at
+     * up to this rate, instead of one capture per shutter press.
+     */
+    private static final int STREAMING_TARGET_FPS = 0;
+    /*
+     * When above 0, the camera streams preview frames into a ring of this many frames and a
+     * shutter press classifies the frame closest to the press, instead of a new capture.
+     * Best paired with YUV_420_888, since streaming JPEG makes the camera encode every frame.
+     */
+    private static final int PRE_CAPTURE_FRAMES = 0;
+    private static final int PRE_CAPTURE_FPS = 15;
+    /* Upper bound on the memory of the pre-capture ring, which may hold fewer frames. */
+    private static final long PRE_CAPTURE_MEMORY_BUDGET_BYTES = 8 * 1024 * 1024;
+    /* Frames each pipeline stage may hold before it drops the oldest (or blocks, for shots). */
+    private static final int PIPELINE_QUEUE_SIZE = 2;
+    private static final int TF_INTERPRETER_POOL_SIZE = 2;
+    private static final int TF_INTERPRETER_THREADS = 2;
 
     private static final String DEFAULT_LABELS_FILE = "labels.txt";
     private static final String DEFAULT_MODEL_FILE = "model.tflite";
+    /* Disk space downloaded models may take before the least recently used are evicted. */
+    private static final long MODEL_STORE_BUDGET_BYTES = 64 * 1024 * 1024;
+    /* Labelled images kept for upload at most, and how long, before the oldest are dropped. */
+    private static final int OUTBOX_MAX_ITEMS = 200;
+    private static final long OUTBOX_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+    /* Least time between two logs of the pipeline and interpreter pool stats. */
+    private static final long STATS_LOG_INTERVAL_MILLIS = 5000;
 
 
     /* Key code used by GPIO button to trigger image capture */
@@ -105,38 +130,69 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
 
     private ImagePreprocessor mImagePreprocessor;
     private CameraHandler mCameraHandler;
-    private TensorFlowImageClassifier mTensorFlowClassifier;
-    private String localFilePathInCache;
-    private String gcsFilePath;
+    /* Active classifier; replaced while frames keep flowing when a new model is rolled out. */
+    private final ModelHolder mModelHolder = new ModelHolder();
+    /* Last image written to the cache dir for the send to cloud flow, until it is replaced. */
+    private final AtomicReference<String> localFilePathInCache = new AtomicReference<>();
+    private volatile boolean mYuvFramePending;
     private CloudPublisher mPublisher;
 
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
+    private HandlerThread mUploadThread;
+    private Handler mUploadHandler;
+    private HandlerThread mModelThread;
+    private Handler mModelHandler;
+    /* Only used from the model thread. */
+    private ModelDownloader mModelDownloader;
+    /* Downloaded models, keyed by the generations of their objects. */
+    private ModelStore mModelStore;
+    /* Labelled images waiting to be uploaded, kept across restarts. */
+    private UploadOutbox mUploadOutbox;
+
+    /*
+     * Frames flow from the camera callback through preprocessing and inference to the capture
+     * sink, each on its own thread, so decoding a frame overlaps inference of the previous one.
+     */
+    private FramePool mFramePool;
+    private PipelineStage<Frame> mPreprocessStage;
+    private PipelineStage<Frame> mInferenceStage;
+    private PipelineStage<Frame> mCaptureSinkStage;
+
+    /** Last YUV frame, kept so it can be encoded to JPEG if the user sends it to the cloud. */
+    private final Object mLastYuvFrameLock = new Object();
+    private Frame mLastYuvFrame;
+
+    /** Recent preview frames, only kept in pre-capture mode. */
+    private PreCaptureRing mPreCaptureRing;
 
     private ImageView mImage;
+    private Bitmap mDisplayedBitmap;
     private TextView mResultText;
     private LinearLayout mSendToCloudLayout;
     private Button mSendToCloudButton;
     private Button mConfirmSendButton;
     private RadioGroup mLabelsRadio;
-    private MqttAuthentication mqttAuth;
-    private MqttClient mqttClient;
 
     private AtomicBoolean mReady = new AtomicBoolean(false);
+    private final FrameRateMeter mClassificationRate = new FrameRateMeter();
+    private long mLastStreamedFrameMs;
+    /* Only touched by the inference stage. */
+    private long mLastStatsLogMs = -STATS_LOG_INTERVAL_MILLIS;
     private static MqttCallback mCallback;
-    private static JSONObject mJsonObject;
+
+    /* Latest config not applied yet; a newer one replaces it while a model is being fetched. */
+    private final AtomicReference<ModelConfig> mPendingConfig = new AtomicReference<>();
+    private final AtomicBoolean mConfigScheduled = new AtomicBoolean(false);
+    /* Config of the model in use. Only used from the model thread. */
+    private ModelConfig mActiveConfig;
+    /* Store entry of the running model, null while the bundled one runs. */
+    private volatile String mActiveEntryId;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-        try{
-            Log.i(TAG, "Reading GCS Service Account Key file");
-            AssetManager assets = getAssets();
-            gcsKeyFile = readFileFromStream(assets.open(GCS_KEY_FILE));
-        }catch(Exception e){
-            Log.i(TAG, "Failed Reading GCS Service Account Key file");
-        }
         setContentView(R.layout.activity_camera);
         mImage = findViewById(R.id.imageView);
         mResultText = findViewById(R.id.resultText);
@@ -144,42 +200,31 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         mLabelsRadio = findViewById(R.id.labelButtons);
         mSendToCloudButton = findViewById(R.id.sendToCloudBtn);
         mConfirmSendButton = findViewById(R.id.confirmSendBtn);
+        mModelStore = new ModelStore(new File(getFilesDir(), "models"), MODEL_STORE_BUDGET_BYTES);
+        mUploadOutbox = new UploadOutbox(new File(getFilesDir(), "outbox"), OUTBOX_MAX_ITEMS,
+                OUTBOX_MAX_AGE_MILLIS, mOutboxSender);
         init();
     }
 
     private void init() {
-        // Initialize MQTT
-        mqttAuth = new MqttAuthentication();
-        mqttAuth.initialize();
-
-        // Export Certificate to Storage
-        if( Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            Log.i(TAG, "External Storage Stat " + Environment.getExternalStorageState());
-            try {
-                Log.i(TAG, "Exporting key to " + Environment.getExternalStorageDirectory());
-                mqttAuth.exportPublicKey(new File(Environment.getExternalStorageDirectory(),
-                        "cloud_iot_auth_certificate.pem"));
-            } catch (GeneralSecurityException | IOException e) {
-                if( e instanceof FileNotFoundException && e.getMessage().contains("Permission denied")) {
-                    Log.e(TAG, "Unable to export certificate, may need to reboot to receive WRITE permissions?", e);
-                } else {
-                    Log.e(TAG, "Unable to export certificate", e);
-                }
-            }
-        }
         mBackgroundThread = new HandlerThread("BackgroundThread");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mUploadThread = new HandlerThread("UploadThread");
+        mUploadThread.start();
+        mUploadHandler = new Handler(mUploadThread.getLooper());
+        mModelThread = new HandlerThread("ModelThread");
+        mModelThread.start();
+        mModelHandler = new Handler(mModelThread.getLooper());
+        startPipeline();
         mBackgroundHandler.post(mInitializeOnBackground);
 
-        // Listen to config changes.
-        CloudIotOptions cloudIotOptions =
-                new CloudIotOptions(PROJECT_ID, REGISTRY_ID, DEVICE_ID, CLOUD_REGION);
-        mPublisher = new MQTTPublisher(cloudIotOptions);
-        mqttClient = mPublisher.getMqttClient();
+        // Listen to config changes. The publisher loads the device key and exports its
+        // certificate the first time it is used in the process.
+        mPublisher = MQTTPublisher.getInstance(this, getCloudIotOptions());
         try {
             Log.i(TAG, "Attaching callback for config change");
-            attachCallback(mqttClient, DEVICE_ID);
+            attachCallback(mPublisher, DEVICE_ID);
         } catch (MqttException e){
             Log.e(TAG, "Exception error " + e);
         }
@@ -187,12 +232,24 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     }
 
 
+    private static CloudIotOptions getCloudIotOptions() {
+        return new CloudIotOptions(PROJECT_ID, REGISTRY_ID, DEVICE_ID, CLOUD_REGION);
+    }
+
     /** Attaches the callback used when configuration changes occur. */
-    public  void attachCallback(MqttClient client, String deviceId) throws MqttException {
+    public  void attachCallback(final CloudPublisher publisher, String deviceId) throws MqttException {
         mCallback = new MqttCallback() {
             @Override
             public void connectionLost(Throwable cause) {
-                // Do nothing...
+                // The publisher reconnects with backoff and subscribes to the config again.
+                Log.w(TAG, "MQTT connection lost, reconnecting: " + cause);
+                if (publisher instanceof MQTTPublisher) {
+                    MqttConnectionManager connection =
+                            ((MQTTPublisher) publisher).getConnectionManager();
+                    if (connection != null) {
+                        Log.i(TAG, connection.toString());
+                    }
+                }
             }
 
             @Override
@@ -200,15 +257,20 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
                 String payload = new String(message.getPayload());
                 if (! payload.isEmpty()){
                     try {
-                        mJsonObject = new JSONObject(payload);
-                        Log.i(TAG, "New Config Received, processing");
-                        mReady.set(false);
+                        ModelConfig config = ModelConfig.parse(payload);
+                        Log.i(TAG, "New Config Received, processing " + config);
                         runOnUiThread(new Runnable() {
                             @Override
                             public void run() { mResultText.setText("Config change received, processing....");
                             }
                         });
-                        mBackgroundHandler.post(mBackgroundGetModelFromGCS);
+                        // Classification carries on with the current model while the new
+                        // one downloads and loads. Configs arriving meanwhile are coalesced,
+                        // only the latest one is applied next.
+                        mPendingConfig.set(config);
+                        if (mConfigScheduled.compareAndSet(false, true)) {
+                            mModelHandler.post(mBackgroundGetModelFromGCS);
+                        }
                     }catch (JSONException ex){
                         Log.e(TAG, "Failed processing config payload " + payload);
                     }
@@ -223,114 +285,267 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         };
 
         String configTopic = String.format("/devices/%s/config", deviceId);
-        client.subscribe(configTopic, 1);
-        client.setCallback(mCallback);
+        // Set first, the config may arrive as soon as the subscription is acknowledged. The
+        // publisher subscribes again after each reconnect.
+        publisher.setCallback(mCallback);
+        publisher.subscribe(configTopic, 1);
     }
 
     private Runnable mBackgroundGetModelFromGCS = new Runnable() {
         @Override
         public void run() {
-            //Send the Image to GCS.
-            Log.i(TAG, "Getting new Model and Label from GCS ...");
-            String bucketName = "";
-            String modelFileName = "";
-            String labelsFileName = "";
-            File cachePath = new File(getCacheDir().toString());
-            try {
-                bucketName = mJsonObject.getString("bucket");
-                modelFileName = mJsonObject.getString("model");
-                labelsFileName = mJsonObject.getString("labels");
-            } catch (JSONException ex) {
-                Log.e(TAG, "Error parsing Json payload" + mJsonObject);
+            // Cleared first, so a config arriving from now on schedules another run.
+            mConfigScheduled.set(false);
+            ModelConfig config = mPendingConfig.getAndSet(null);
+            if (config == null) {
+                return;
             }
+            if (config.isSameModel(mActiveConfig)) {
+                Log.i(TAG, config + " is already active");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mResultText.setText(R.string.help_message);
+                    }
+                });
+                return;
+            }
+            Log.i(TAG, "Getting new Model and Label from GCS for " + config);
             try {
-                Storage storage = getStorage();
+                if (mModelDownloader == null) {
+                    mModelDownloader = new ModelDownloader(GcsClient.getInstance().getStorage());
+                }
+                ModelStore.Entry entry;
+                if (config.isBundle()) {
+                    entry = fetchBundle(config);
+                } else {
+                    entry = fetchModelAndLabels(config);
+                }
+                if (entry.getId().equals(mActiveEntryId)) {
+                    // An unpinned config that resolved to the generations already running.
+                    Log.i(TAG, config + " resolves to the active " + entry);
+                    mActiveConfig = config;
+                    return;
+                }
+
+                // ReInitialize the TF model
                 try {
-                    // Downloading Model File
-                    ByteArrayOutputStream modelStream = new ByteArrayOutputStream();
-                    Storage.Objects.Get getModel = storage.objects().get(bucketName, modelFileName);
-                    getModel.getMediaHttpDownloader().setDirectDownloadEnabled(false);
-                    getModel.executeMediaAndDownloadTo(modelStream);
-                    // Writing Model file to Local Cache
-                    String modelFilePath = cachePath + "/" + modelFileName;
-                    Log.i(TAG, "Writing Model file to Local Cache: " + modelFilePath.toString());
-                    FileOutputStream modelFileFos = new FileOutputStream(modelFilePath);
-                    modelStream.writeTo(modelFileFos);
-                    modelFileFos.flush();
-                    modelFileFos.close();
-
-                    // Downloading Labels File
-                    ByteArrayOutputStream labelsStream = new ByteArrayOutputStream();
-                    Storage.Objects.Get getLabels = storage.objects().get(bucketName, labelsFileName);
-                    getModel.getMediaHttpDownloader().setDirectDownloadEnabled(false);
-                    getLabels.executeMediaAndDownloadTo(labelsStream);
-                    // Writing Model file to Local Cache
-                    String labelsFilePath = cachePath + "/" + labelsFileName;
-                    Log.i(TAG, "Writing Labels file to Local Cache: " + labelsFilePath.toString());
-                    FileOutputStream labelsFileFos = new FileOutputStream(labelsFilePath);
-                    labelsStream.writeTo(labelsFileFos);
-                    labelsFileFos.flush();
-                    labelsFileFos.close();
-
-                    // ReInitialize the TF model
-                    try {
-                        Log.i(TAG, "Re-Initializing TF Classifier");
-                        mTensorFlowClassifier = new TensorFlowImageClassifier(ImageClassifierActivity.this,
-                                modelFilePath, labelsFilePath, TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT, false);
-                        Log.i(TAG, "TF Classifier Re-Initialized successfully");
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error while Re-Initializing TF Classifier" + e.toString());
-                    }
+                    Log.i(TAG, "Re-Initializing TF Classifier");
+                    activateStoredModel(entry);
+                    mActiveConfig = config;
+                    Log.i(TAG, "TF Classifier Re-Initialized successfully");
                 } catch (Exception e) {
-                    Log.e(TAG, "Error Talking to GCS to fetch new config: " + e.toString());
+                    Log.e(TAG, "Error while Re-Initializing TF Classifier" + e.toString());
                 }
+            } catch (Exception e) {
+                Log.e(TAG, "Error Talking to GCS to fetch new config: " + e.toString());
             } finally {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
                         mResultText.setText(R.string.help_message);
-                        mReady.set(true);
                     }
                 });
             }
         }
     };
 
-    private File readFileFromStream(InputStream inStream){
-        File tempFile = new File(getCacheDir()+"/file");
-        try{
-            byte[] buffer = new byte[4096];
-            inStream.read(buffer);
-            inStream.close();
-            FileOutputStream KeyFileOutStream = new FileOutputStream(tempFile);
-            KeyFileOutStream.write(buffer);
-            KeyFileOutStream.close();
-        }catch(IOException e){
-            Log.e(TAG, "Unable to read file from Stream");
-        }
-        return tempFile;
+    /**
+     * Get the model and labels objects named in the config from the store, downloading them
+     * if needed.
+     */
+    private ModelStore.Entry fetchModelAndLabels(ModelConfig config) throws IOException {
+        String bucketName = config.getBucket();
+        String modelFileName = config.getModel();
+        String labelsFileName = config.getLabels();
+        // Configs may pin object generations; otherwise only the metadata is fetched
+        // to find out whether the current objects are already stored.
+        long modelGeneration = config.getModelGeneration() != null
+                ? config.getModelGeneration()
+                : mModelDownloader.getGeneration(bucketName, modelFileName);
+        long labelsGeneration = config.getLabelsGeneration() != null
+                ? config.getLabelsGeneration()
+                : mModelDownloader.getGeneration(bucketName, labelsFileName);
+        ModelStore.Key key = new ModelStore.Key(bucketName, modelFileName,
+                modelGeneration, labelsFileName, labelsGeneration);
+
+        ModelStore.Entry entry = mModelStore.find(key);
+        if (entry != null) {
+            Log.i(TAG, "Model already stored: " + entry);
+        } else {
+            ModelStore.Entry target = mModelStore.prepare(key);
+            try {
+                if (config.hasPatch() && applyPatch(config, target)) {
+                    Log.i(TAG, "Model patched, downloading Labels for " + key);
+                    mModelDownloader.download(bucketName, labelsFileName, labelsGeneration,
+                            target.getLabelsFile());
+                    return mModelStore.commit(key);
+                }
+                Log.i(TAG, "Downloading Model and Labels for " + key);
+                mModelDownloader.downloadAll(bucketName,
+                        Arrays.asList(modelFileName, labelsFileName),
+                        Arrays.asList(modelGeneration, labelsGeneration),
+                        Arrays.asList(target.getModelFile(), target.getLabelsFile()));
+                entry = mModelStore.commit(key);
+            } catch (IOException | RuntimeException e) {
+                mModelStore.discard(target);
+                throw e;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Build the model of {@code target} from a stored older generation and the patch named in
+     * the config.
+     *
+     * @return false if the base model is not stored or the patch failed, in which case the
+     *         full model has to be downloaded.
+     */
+    private boolean applyPatch(ModelConfig config, ModelStore.Entry target) {
+        try {
+            ModelStore.Entry base = mModelStore.findModel(config.getBucket(), config.getModel(),
+                    config.getPatchBaseGeneration());
+            if (base == null) {
+                Log.i(TAG, "Base of the model patch is not stored");
+                return false;
+            }
+            mModelDownloader.downloadPatch(config.getBucket(), config.getPatchObject(),
+                    base.getModelFile(), target.getModelFile(), config.getPatchSha256());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Model patch failed, falling back to a full download", e);
+            return false;
+        }
+    }
+
+    /**
+     * Get a bundle archive from the store, downloading and unpacking it if needed. The bundle
+     * holds the model, its labels and a manifest, so they always come from the same version.
+     */
+    private ModelStore.Entry fetchBundle(ModelConfig config) throws IOException {
+        String bucketName = config.getBucket();
+        String bundleName = config.getBundle();
+        long generation = config.getBundleGeneration() != null
+                ? config.getBundleGeneration()
+                : mModelDownloader.getGeneration(bucketName, bundleName);
+        ModelStore.Key key = ModelStore.Key.forBundle(bucketName, bundleName, generation);
+        ModelStore.Entry entry = mModelStore.find(key);
+        if (entry != null) {
+            Log.i(TAG, "Bundle already stored: " + entry);
+            return entry;
+        }
+        ModelStore.Entry target = mModelStore.prepare(key);
+        try {
+            Log.i(TAG, "Downloading bundle " + key);
+            mModelDownloader.downloadBundle(bucketName, bundleName, generation,
+                    target.getDirectory());
+            return mModelStore.commit(key);
+        } catch (IOException | RuntimeException e) {
+            mModelStore.discard(target);
+            throw e;
+        }
     }
 
     private Runnable mInitializeOnBackground = new Runnable() {
         @Override
         public void run() {
+            try {
+                Log.i(TAG, "Reading GCS Service Account Key file");
+                GcsClient.getInstance().initialize(ImageClassifierActivity.this, ACCOUNT_ID,
+                        GCS_KEY_FILE, APPLICATION_NAME);
+            } catch (GeneralSecurityException | IOException e) {
+                Log.e(TAG, "Failed Reading GCS Service Account Key file", e);
+            }
             mImagePreprocessor = new ImagePreprocessor(PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT,
                     TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT);
             mCameraHandler = CameraHandler.getInstance();
             mCameraHandler.initializeCamera(ImageClassifierActivity.this,
-                    PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT, mBackgroundHandler,
-                    ImageClassifierActivity.this);
-            try {
-                mTensorFlowClassifier = new TensorFlowImageClassifier(ImageClassifierActivity.this,
-                        DEFAULT_MODEL_FILE, DEFAULT_LABELS_FILE, TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT, true);
-            } catch (IOException e) {
-                throw new IllegalStateException("Cannot initialize TFLite Classifier", e);
+                    PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT, CAPTURE_IMAGE_FORMAT,
+                    mBackgroundHandler, ImageClassifierActivity.this);
+            if (PRE_CAPTURE_FRAMES > 0) {
+                // Sized for NV21, which is never smaller than the JPEG of the same frame.
+                mPreCaptureRing = new PreCaptureRing(PRE_CAPTURE_FRAMES,
+                        PREVIEW_IMAGE_WIDTH * PREVIEW_IMAGE_HEIGHT * 3 / 2,
+                        PRE_CAPTURE_MEMORY_BUDGET_BYTES, mCameraHandler.isTimestampRealtime());
+                Log.i(TAG, "Pre-capture ring of " + mPreCaptureRing.getCapacity() + " frames, "
+                        + mPreCaptureRing.getMemoryBytes() / 1024 + "KB");
+                mCameraHandler.startStreaming(Math.max(PRE_CAPTURE_FPS, STREAMING_TARGET_FPS));
+            } else if (STREAMING_TARGET_FPS > 0) {
+                mCameraHandler.startStreaming(STREAMING_TARGET_FPS);
+            }
+            ModelStore.Entry stored = mModelStore.getActive();
+            if (stored != null) {
+                try {
+                    Log.i(TAG, "Restoring last active model " + stored);
+                    activateStoredModel(stored);
+                } catch (IOException | RuntimeException e) {
+                    // A damaged model makes the interpreter or the label parser throw; drop it,
+                    // or every restart would try it again and crash.
+                    Log.e(TAG, "Cannot restore last active model, using the bundled one", e);
+                    mModelStore.drop(stored);
+                    stored = null;
+                }
+            }
+            if (stored == null) {
+                try {
+                    TensorFlowImageClassifier classifier = new TensorFlowImageClassifier(
+                            ImageClassifierActivity.this, DEFAULT_MODEL_FILE, DEFAULT_LABELS_FILE,
+                            getClassifierOptions(), true);
+                    classifier.warmUp();
+                    mModelHolder.swap(classifier);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot initialize TFLite Classifier", e);
+                }
             }
 
             setReady(true);
         }
     };
 
+    /**
+     * Load, warm up and swap in a model from the store, and remember it as the active one.
+     */
+    private void activateStoredModel(ModelStore.Entry entry) throws IOException {
+        // Bundles describe their own input size and normalization.
+        ModelManifest manifest = entry.readManifest();
+        ClassifierOptions options = manifest != null
+                ? withRuntimeOptions(manifest.newOptions()) : getClassifierOptions();
+        TensorFlowImageClassifier classifier = new TensorFlowImageClassifier(
+                ImageClassifierActivity.this, entry.getModelFile().getPath(),
+                entry.getLabelsFile().getPath(), options, false);
+        boolean swapped = false;
+        try {
+            if (manifest != null) {
+                manifest.verify(classifier);
+            }
+            classifier.warmUp();
+            mModelHolder.swap(classifier);
+            swapped = true;
+        } finally {
+            if (!swapped) {
+                // Drops the creator's reference, which closes the pool and unmaps the model.
+                mModelHolder.release(classifier);
+            }
+        }
+        mModelStore.setActive(entry);
+        mActiveEntryId = entry.getId();
+    }
+
+    /**
+     * Options of the bundled model, whose input is described by the constants above.
+     */
+    private static ClassifierOptions getClassifierOptions() {
+        return withRuntimeOptions(
+                new ClassifierOptions(TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT));
+    }
+
+    private static ClassifierOptions withRuntimeOptions(ClassifierOptions options) {
+        return options
+                .setPoolSize(TF_INTERPRETER_POOL_SIZE)
+                .setNumThreads(TF_INTERPRETER_THREADS);
+    }
+
     private Runnable mBackgroundClickHandler = new Runnable() {
         @Override
         public void run() {
@@ -338,64 +553,83 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         }
     };
 
-    private Runnable mBackgroundUploadToGcsHandler = new Runnable() {
+    /**
+     * Put the last captured image and its label in the outbox, which uploads it to GCS and
+     * publishes its path and label, retrying until both succeed. The device is ready for the
+     * next capture right away.
+     */
+    private void uploadLastCapture(final String selectedLabel) {
+        Log.i(TAG, "Trying to write image to GCS");
+        if (mYuvFramePending) {
+            writeLastYuvFrameToCache();
+        }
+        // Taken, so the next frame does not delete it; the outbox deletes it once copied.
+        String path = localFilePathInCache.getAndSet(null);
+        if (path == null) {
+            Log.e(TAG, "No image to upload");
+        } else {
+            Log.i(TAG, path);
+            mUploadOutbox.enqueue(new File(path), selectedLabel);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() { mResultText.setText("Image queued for upload to GCS");
+                }
+            });
+        }
+        setReady(true);
+    }
+
+    /**
+     * Sends an outbox item: uploads the image, then publishes its GCS path and label.
+     */
+    private final UploadOutbox.Sender mOutboxSender = new UploadOutbox.Sender() {
         @Override
-        public void run() {
-            //Send the Image to GCS.
-            Log.i(TAG, "Trying to write image to GCS");
-            try{
-                runOnUiThread(new Runnable() {
+        public void send(final UploadOutbox.Item item, final UploadOutbox.Callback callback) {
+            File image = item.getFile();
+            try {
+                GcsClient.getInstance().upload(image, BUCKET_NAME, image.getName(),
+                        new GcsClient.UploadListener() {
                     @Override
-                    public void run() { mResultText.setText("Uploading Image to GCS....");
+                    public void onUploaded(File file, String gcsFilePath) {
+                        Log.i(TAG, "File uploaded to GCS Successfully : " + gcsFilePath);
+                        Log.i(TAG, "Sending Info to Pub Sub : " + item.getLabel());
+                        try {
+                            // Shared with the config subscription: Cloud IoT drops the older
+                            // of two connections using the same device ID. The item only
+                            // leaves the outbox once the broker acknowledged the message.
+                            MQTTPublisher.getInstance(ImageClassifierActivity.this,
+                                    getCloudIotOptions()).publish(gcsFilePath, item.getLabel(),
+                                    new IMqttActionListener() {
+                                @Override
+                                public void onSuccess(IMqttToken asyncActionToken) {
+                                    callback.onSent();
+                                }
+
+                                @Override
+                                public void onFailure(IMqttToken asyncActionToken,
+                                                      Throwable exception) {
+                                    Log.e(TAG, "Error publishing to PubSub " + exception);
+                                    callback.onFailed(exception instanceof Exception
+                                            ? (Exception) exception
+                                            : new Exception(exception));
+                                }
+                            });
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error publishing to PubSub " + e.toString());
+                            callback.onFailed(e);
+                        }
+                    }
+
+                    @Override
+                    public void onUploadFailed(File file, IOException e) {
+                        Log.e(TAG, "Error writing file to GCS " + e.toString());
+                        callback.onFailed(e);
                     }
                 });
-                Storage storage = getStorage();
-                File file = new File(localFilePathInCache);
-                FileInputStream stream = new FileInputStream(file);
-                Log.i(TAG, localFilePathInCache);
-                try {
-                    StorageObject objectMetadata = new StorageObject();
-                    objectMetadata.setBucket(BUCKET_NAME);
-                    String contentType = URLConnection.guessContentTypeFromStream(stream);
-                    InputStreamContent content = new InputStreamContent(contentType, stream);
-                    Storage.Objects.Insert insert = storage.objects().insert(
-                            BUCKET_NAME, objectMetadata, content);
-                    gcsFilePath = "gs://" + BUCKET_NAME + "/" + file.getName();
-                    insert.setName(file.getName());
-                    insert.execute();
-                    Log.i(TAG, "File uploaded to GCS Successfully : " + gcsFilePath);
-                    //Try to Publish to PubSub
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() { mResultText.setText("Posting to PubSub....");
-                        }
-                    });
-                    Log.i(TAG, "Sending Info to Pub Sub : ");
-                    int selectedId = mLabelsRadio.getCheckedRadioButtonId();
-                    RadioButton selected = findViewById(selectedId);
-                    String selectedLabel = (String) selected.getText();
-                    Log.i(TAG, "Selected Label Label:" + selectedLabel);
-                    CloudIotOptions cloudIotOptions =
-                            new CloudIotOptions(PROJECT_ID, REGISTRY_ID, DEVICE_ID, CLOUD_REGION);
-                    mPublisher = new MQTTPublisher(cloudIotOptions);
-                    mPublisher.publish(gcsFilePath, selectedLabel.toLowerCase());
-                } catch (Exception e) {
-                    Log.e(TAG, "Error writing file to GCS "+e.toString());
-                } finally {
-                    stream.close();
-                }
-            }catch (FileNotFoundException e){
-                Log.e(TAG, "File Not Found" + e.toString());
-            }catch (IOException e){
-                Log.e(TAG, "IO Stream Error " + e.toString());
+            } catch (IllegalStateException e) {
+                // GCS client not initialized yet.
+                callback.onFailed(e);
             }
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mResultText.setText(R.string.help_message);
-                }
-            });
-            setReady(true);
         }
     };
 
@@ -403,7 +637,11 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         Log.d(TAG, "Received key up: " + keyCode);
         if (keyCode == SHUTTER_KEYCODE) {
-            startImageCapture();
+            // The button went down before this event was delivered; express that moment on
+            // the clock used by the pre-capture ring.
+            long pressedAgoMs = SystemClock.uptimeMillis() - event.getDownTime();
+            startImageCapture(SystemClock.elapsedRealtimeNanos()
+                    - TimeUnit.MILLISECONDS.toNanos(pressedAgoMs));
             return true;
         }
         return super.onKeyUp(keyCode, event);
@@ -414,7 +652,7 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
      */
     public void onShutterClick(View view) {
         Log.d(TAG, "Received screen tap");
-        startImageCapture();
+        startImageCapture(SystemClock.elapsedRealtimeNanos());
     }
 
     public void onSendToCloudClick(View view) {
@@ -425,7 +663,15 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         }
     }
     public void onConfirmSendClick(View view){
-        mBackgroundHandler.post(mBackgroundUploadToGcsHandler);
+        int selectedId = mLabelsRadio.getCheckedRadioButtonId();
+        RadioButton selected = findViewById(selectedId);
+        final String selectedLabel = selected.getText().toString().toLowerCase();
+        mUploadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                uploadLastCapture(selectedLabel);
+            }
+        });
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -460,18 +706,49 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
 
     /**
      * Verify and initiate a new image capture
+     *
+     * @param pressedAtNanos when the shutter was pressed, on the
+     *                       {@link SystemClock#elapsedRealtimeNanos()} clock.
      */
-    private void startImageCapture() {
+    private void startImageCapture(final long pressedAtNanos) {
         Log.d(TAG, "Ready for another capture? " + mReady.get());
         if (mReady.get()) {
             setReady(false);
             mResultText.setText("Hold on...");
-            mBackgroundHandler.post(mBackgroundClickHandler);
+            if (mPreCaptureRing != null) {
+                mBackgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        classifyPreCapturedFrame(pressedAtNanos);
+                    }
+                });
+            } else {
+                mBackgroundHandler.post(mBackgroundClickHandler);
+            }
         } else {
             Log.i(TAG, "Sorry, processing hasn't finished. Try again in a few seconds");
         }
     }
 
+    /**
+     * Send the buffered preview frame closest to the shutter press down the pipeline.
+     */
+    private void classifyPreCapturedFrame(long pressedAtNanos) {
+        Frame frame = mFramePool.acquire();
+        if (frame == null) {
+            Log.w(TAG, "Pipeline full, ignoring shutter press");
+            setReady(true);
+            return;
+        }
+        if (!mPreCaptureRing.copyClosest(pressedAtNanos, frame)) {
+            Log.w(TAG, "No preview frame buffered yet");
+            releaseFrame(frame);
+            setReady(true);
+            return;
+        }
+        mPreprocessStage.submit(frame);
+    }
+
     /**
      * Mark the system as ready for a new image capture
      */
@@ -479,44 +756,259 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         mReady.set(ready);
     }
 
-    private static Storage getStorage() {
-        if (sStorage == null) {
-            HttpTransport httpTransport = new NetHttpTransport();
-            JsonFactory jsonFactory = new JacksonFactory();
-            List<String> scopes = new ArrayList<>();
-            scopes.add(StorageScopes.DEVSTORAGE_FULL_CONTROL);
+    private void startPipeline() {
+        PipelineStage.OverflowPolicy policy = STREAMING_TARGET_FPS > 0
+                ? PipelineStage.OverflowPolicy.DROP_OLDEST : PipelineStage.OverflowPolicy.BLOCK;
+        // Every queue full, one frame in each stage, and the last YUV frame kept for upload.
+        mFramePool = new FramePool(3 * PIPELINE_QUEUE_SIZE + 4);
+        mCaptureSinkStage = new PipelineStage<>("CaptureSink", PIPELINE_QUEUE_SIZE,
+                PipelineStage.OverflowPolicy.DROP_OLDEST, mCaptureSink, mFrameDropped);
+        mInferenceStage = new PipelineStage<>("Inference", PIPELINE_QUEUE_SIZE, policy,
+                mInference, mFrameDropped);
+        mPreprocessStage = new PipelineStage<>("Preprocess", PIPELINE_QUEUE_SIZE, policy,
+                mPreprocess, mFrameDropped);
+        mCaptureSinkStage.start();
+        mInferenceStage.start();
+        mPreprocessStage.start();
+    }
+
+    private void stopPipeline() {
+        if (mPreprocessStage != null) mPreprocessStage.quit();
+        if (mInferenceStage != null) mInferenceStage.quit();
+        if (mCaptureSinkStage != null) mCaptureSinkStage.quit();
+    }
+
+    /**
+     * Camera callback: only copies the frame out of the camera buffer and hands it on, so the
+     * camera can deliver the next frame while this one is processed. A single YUV shot is not
+     * copied: it is classified straight from the camera planes, since the camera stays idle
+     * until the next shutter press.
+     */
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            if (mPreCaptureRing != null) {
+                mPreCaptureRing.add(image);
+                if (STREAMING_TARGET_FPS <= 0) {
+                    // Frames are only classified on a shutter press.
+                    return;
+                }
+            }
+            if (STREAMING_TARGET_FPS > 0 && !acceptStreamedFrame()) {
+                return;
+            }
+            Frame frame = mFramePool.acquire();
+            if (frame == null) {
+                Log.w(TAG, "Pipeline full, dropping frame");
+                frameDone();
+                return;
+            }
+            if (STREAMING_TARGET_FPS <= 0 && image.getFormat() == ImageFormat.YUV_420_888) {
+                frame.hold(image);
+                image = null;
+            } else {
+                frame.copyFrom(image);
+            }
+            mPreprocessStage.submit(frame);
+        } finally {
+            if (image != null) {
+                image.close();
+            }
+        }
+    }
+
+    /**
+     * While streaming, only classify a frame when the target rate allows it and the user is
+     * not busy labelling an image; everything else is dropped.
+     */
+    private boolean acceptStreamedFrame() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastStreamedFrameMs < 1000 / STREAMING_TARGET_FPS || !mReady.get()) {
+            return false;
+        }
+        mLastStreamedFrameMs = now;
+        return true;
+    }
+
+    /**
+     * Mark the end of processing for a frame. A single shot makes the device ready for the
+     * next one; while streaming, readiness is left to the labelling flow.
+     */
+    private void frameDone() {
+        if (STREAMING_TARGET_FPS <= 0) {
+            setReady(true);
+        }
+    }
+
+    private void releaseFrame(Frame frame) {
+        mFramePool.release(frame);
+    }
+
+    private final PipelineStage.DropListener<Frame> mFrameDropped =
+            new PipelineStage.DropListener<Frame>() {
+        @Override
+        public void onDropped(Frame frame) {
+            if (frame.bitmap != null) {
+                mImagePreprocessor.releaseBitmap(frame.bitmap);
+            }
+            releaseFrame(frame);
+            frameDone();
+        }
+    };
+
+    private final PipelineStage.Worker<Frame> mPreprocess = new PipelineStage.Worker<Frame>() {
+        @Override
+        public void process(Frame frame) {
+            if (frame.getFormat() == ImageFormat.JPEG) {
+                frame.bitmap = mImagePreprocessor.decodeJpeg(frame.getData(), frame.getLength());
+                if (frame.bitmap == null) {
+                    mFrameDropped.onDropped(frame);
+                    return;
+                }
+            }
+            mInferenceStage.submit(frame);
+        }
+    };
+
+    private final PipelineStage.Worker<Frame> mInference = new PipelineStage.Worker<Frame>() {
+        @Override
+        public void process(Frame frame) {
+            TensorFlowImageClassifier classifier = mModelHolder.acquire();
+            if (classifier == null) {
+                mFrameDropped.onDropped(frame);
+                return;
+            }
             try {
-                Credential credential = new GoogleCredential.Builder()
-                        .setTransport(httpTransport)
-                        .setJsonFactory(jsonFactory)
-                        .setServiceAccountId(ACCOUNT_ID)
-                        .setServiceAccountPrivateKeyFromP12File(gcsKeyFile)
-                        .setServiceAccountScopes(scopes).build();
+                classify(classifier, frame);
+                mClassificationRate.tick();
+                logStats(classifier);
+            } finally {
+                mModelHolder.release(classifier);
+            }
+            showResults(frame.results);
+            mCaptureSinkStage.submit(frame);
+        }
+
+        private void logStats(TensorFlowImageClassifier classifier) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastStatsLogMs < STATS_LOG_INTERVAL_MILLIS) {
+                return;
+            }
+            mLastStatsLogMs = now;
+            Log.d(TAG, classifier.getPool().toString());
+            Log.d(TAG, mPreprocessStage + " " + mInferenceStage + " " + mCaptureSinkStage);
+            if (STREAMING_TARGET_FPS > 0) {
+                Log.d(TAG, String.format("Classifying at %.1f fps, camera streaming at %.1f fps",
+                        mClassificationRate.getFps(), mCameraHandler.getStreamingFps()));
+            }
+        }
 
-                sStorage = new Storage.Builder(httpTransport, jsonFactory,
-                        credential).setApplicationName(APPLICATION_NAME).build();
-            }catch (Exception e){
-                Log.e(TAG, "ERROR getting a Storage Object: " + e.toString());
+        private void classify(TensorFlowImageClassifier classifier, Frame frame) {
+            final Bitmap bitmap = frame.bitmap;
+            if (bitmap != null) {
+                frame.results = classifier.doRecognize(bitmap);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mImage.setImageBitmap(bitmap);
+                        // The previous frame is off screen now, let the decoder reuse it.
+                        if (mDisplayedBitmap != null && mDisplayedBitmap != bitmap) {
+                            mImagePreprocessor.releaseBitmap(mDisplayedBitmap);
+                        }
+                        mDisplayedBitmap = bitmap;
+                    }
+                });
+                // The bitmap now belongs to the screen.
+                frame.bitmap = null;
+            } else if (frame.getImage() != null) {
+                frame.results = classifier.doRecognizeYuv(frame.getImage());
+            } else {
+                frame.results = classifier.doRecognizeNv21(frame.getData(),
+                        frame.getWidth(), frame.getHeight());
+            }
+        }
+    };
+
+    /**
+     * Keeps the image of the last classified frame around for the send to cloud flow. JPEG
+     * frames are written as captured, without decoding and re-encoding them.
+     */
+    private final PipelineStage.Worker<Frame> mCaptureSink = new PipelineStage.Worker<Frame>() {
+        @Override
+        public void process(Frame frame) {
+            if (frame.getFormat() == ImageFormat.JPEG) {
+                File file = new File(getCacheDir(), frame.getTimestampNanos() + ".jpg");
+                try (FileOutputStream os = new FileOutputStream(file)) {
+                    os.write(frame.getData(), 0, frame.getLength());
+                    replaceCachedImage(file.getPath());
+                    mYuvFramePending = false;
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing file to Cache: " + file);
+                    file.delete();
+                }
+                releaseFrame(frame);
+            } else {
+                Frame previous;
+                synchronized (mLastYuvFrameLock) {
+                    previous = mLastYuvFrame;
+                    mLastYuvFrame = frame;
+                }
+                releaseFrame(previous);
+                replaceCachedImage(null);
+                mYuvFramePending = true;
+            }
+            showSendToCloudOption();
+            frameDone();
+        }
+    };
+
+    private void writeLastYuvFrameToCache() {
+        synchronized (mLastYuvFrameLock) {
+            if (mLastYuvFrame == null) {
+                return;
+            }
+            // Only now, when the image is wanted for upload, is a held shot copied out.
+            mLastYuvFrame.detach();
+            File file = new File(getCacheDir(), mLastYuvFrame.getTimestampNanos() + ".jpg");
+            try {
+                mImagePreprocessor.writeNv21AsJpeg(mLastYuvFrame.getData(),
+                        mLastYuvFrame.getWidth(), mLastYuvFrame.getHeight(), file);
+                Log.i(TAG, "Image written to local Cache: " + file);
+                replaceCachedImage(file.getPath());
+                mYuvFramePending = false;
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing file to Cache: " + file);
             }
         }
-        return sStorage;
     }
 
-    @Override
-    public void onImageAvailable(ImageReader reader) {
-        final Bitmap bitmap;
-        try (Image image = reader.acquireNextImage()) {
-            bitmap = mImagePreprocessor.preprocessImage(image);
+    /**
+     * Make {@code path} the image offered for upload. Every classified frame replaces the last
+     * one while streaming, so the file it replaces is deleted.
+     */
+    private void replaceCachedImage(String path) {
+        String previous = localFilePathInCache.getAndSet(path);
+        if (previous != null && !previous.equals(path)) {
+            new File(previous).delete();
         }
+    }
+
+    private void showSendToCloudOption() {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mImage.setImageBitmap(bitmap);
+                if (localFilePathInCache.get() != null || mYuvFramePending) {
+                    mSendToCloudLayout.setVisibility(View.VISIBLE);
+                }
             }
         });
+    }
 
-        final Collection<Recognition> results = mTensorFlowClassifier.doRecognize(bitmap);
-
+    private void showResults(final Collection<Recognition> results) {
         Log.d(TAG, "Got the following results from Tensorflow: " + results);
 
         runOnUiThread(new Runnable() {
@@ -539,33 +1031,9 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
                         }
                     }
                     mResultText.setText(sb.toString());
-                    //Show the option to send picture to Cloud
-                    if(localFilePathInCache != null){
-                        mSendToCloudLayout.setVisibility(View.VISIBLE);
-                    }
                 }
             }
         });
-
-        //Write Image to local Cache.
-        Log.i(TAG, "Writing image to local cache....");
-        File cachePath= new File(getCacheDir().toString());
-        Long ts = System.currentTimeMillis();
-        String filePath = cachePath + "/" + ts.toString() + ".jpg";
-        try{
-            FileOutputStream os = new FileOutputStream(filePath);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 99, os);
-            os.flush();
-            os.close();
-            Log.i(TAG, "Image written to local Cache: " + filePath);
-            localFilePathInCache = filePath;
-        }catch (FileNotFoundException e){
-            Log.e(TAG,"Destination not found: " + filePath);
-        }catch(IOException e){
-            Log.e(TAG,"Error writing file to Cache: " + filePath);
-        }
-        
-        setReady(true);
     }
 
     @Override
@@ -573,11 +1041,20 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         super.onDestroy();
         try {
             if (mBackgroundThread != null) mBackgroundThread.quit();
+            if (mUploadThread != null) mUploadThread.quit();
+            if (mModelThread != null) mModelThread.quit();
+            if (mModelDownloader != null) mModelDownloader.shutDown();
+            if (mUploadOutbox != null) mUploadOutbox.shutDown();
         } catch (Throwable t) {
             // close quietly
         }
         mBackgroundThread = null;
         mBackgroundHandler = null;
+        mUploadThread = null;
+        mUploadHandler = null;
+        mModelThread = null;
+        mModelHandler = null;
+        stopPipeline();
 
         try {
             if (mCameraHandler != null) mCameraHandler.shutDown();
@@ -585,7 +1062,7 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
             // close quietly
         }
         try {
-            if (mTensorFlowClassifier != null) mTensorFlowClassifier.destroyClassifier();
+            mModelHolder.close();
         } catch (Throwable t) {
             // close quietly
         }
@@ -18,8 +18,10 @@ package com.example.androidthings.imageclassifier;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.media.Image;
 import android.os.Environment;
 import android.util.Log;
@@ -30,24 +32,52 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 /**
- * Class that process an Image and extracts a Bitmap in a format appropriate for
- * the TensorFlow model.
+ * Class that process an Image and extracts a Bitmap from it. Only the center square of the
+ * JPEG frame is decoded, subsampled as far as the TensorFlow model input size allows, into a
+ * bitmap reused from a pool. Scaling to the exact input size happens later, fused with
+ * normalization, in the classifier.
  */
 public class ImagePreprocessor {
     private static final boolean SAVE_PREVIEW_BITMAP = false;
     private static final String TAG = "ImagePreprocessor";
 
-    private Bitmap rgbFrameBitmap;
-    private Bitmap croppedBitmap;
+    /** Decoded frames in flight: the one on screen, the one being classified and a spare. */
+    private static final int BITMAP_POOL_SIZE = 3;
+
+    private final int previewWidth;
+    private final int previewHeight;
+    private final Rect region;
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+
+    /** Copy of the JPEG plane, grown to the largest frame seen. */
+    private byte[] jpegBytes;
 
     public ImagePreprocessor(int previewWidth, int previewHeight,
-                             int croppedwidth, int croppedHeight) {
-        this.croppedBitmap = Bitmap.createBitmap(croppedwidth, croppedHeight, Config.ARGB_8888);
-        this.rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+                             int targetWidth, int targetHeight) {
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+
+        // We only want the center square out of the original rectangle.
+        int minDim = Math.min(previewWidth, previewHeight);
+        int left = (previewWidth - minDim) / 2;
+        int top = (previewHeight - minDim) / 2;
+        this.region = new Rect(left, top, left + minDim, top + minDim);
+
+        // The JPEG decoder scales by powers of two for free; use the largest factor that still
+        // leaves at least the model input size.
+        int targetSize = Math.max(targetWidth, targetHeight);
+        int sampleSize = 1;
+        while (minDim / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inMutable = true;
+        decodeOptions.inPreferredConfig = Config.ARGB_8888;
+        Log.d(TAG, "Decoding " + region + " of each frame with inSampleSize " + sampleSize);
     }
 
     public Bitmap preprocessImage(final Image image) {
@@ -55,51 +85,74 @@ public class ImagePreprocessor {
             return null;
         }
 
-        Assert.assertEquals("Invalid size width", rgbFrameBitmap.getWidth(), image.getWidth());
-        Assert.assertEquals("Invalid size height", rgbFrameBitmap.getHeight(), image.getHeight());
+        Assert.assertEquals("Invalid size width", previewWidth, image.getWidth());
+        Assert.assertEquals("Invalid size height", previewHeight, image.getHeight());
 
-        if (croppedBitmap != null && rgbFrameBitmap != null) {
-            ByteBuffer bb = image.getPlanes()[0].getBuffer();
-            rgbFrameBitmap = BitmapFactory.decodeStream(new ByteBufferBackedInputStream(bb));
-            cropAndRescaleBitmap(rgbFrameBitmap, croppedBitmap, 0);
+        ByteBuffer bb = image.getPlanes()[0].getBuffer();
+        int length = bb.remaining();
+        if (jpegBytes == null || jpegBytes.length < length) {
+            jpegBytes = new byte[length];
         }
-
+        bb.get(jpegBytes, 0, length);
         image.close();
 
+        Bitmap bitmap = decodeJpeg(jpegBytes, length);
+
         // For debugging
-        if (SAVE_PREVIEW_BITMAP) {
-            saveBitmap(croppedBitmap);
+        if (SAVE_PREVIEW_BITMAP && bitmap != null) {
+            saveBitmap(bitmap);
         }
-        return croppedBitmap;
+        return bitmap;
     }
 
-    private static class ByteBufferBackedInputStream extends InputStream {
-
-        ByteBuffer buf;
-
-        public ByteBufferBackedInputStream(ByteBuffer buf) {
-            this.buf = buf;
-        }
-
-        public int read() throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
+    /**
+     * Decode the center square of a JPEG frame into a pooled bitmap. The bitmap should be
+     * handed back through {@link #releaseBitmap(Bitmap)} once it is no longer displayed.
+     */
+    public Bitmap decodeJpeg(byte[] data, int length) {
+        int sampleSize = decodeOptions.inSampleSize;
+        int width = (region.width() + sampleSize - 1) / sampleSize;
+        int height = (region.height() + sampleSize - 1) / sampleSize;
+        Bitmap reusable = bitmapPool.acquire(width, height);
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, length, false);
+            synchronized (decodeOptions) {
+                decodeOptions.inBitmap = reusable;
+                Bitmap bitmap = decoder.decodeRegion(region, decodeOptions);
+                decodeOptions.inBitmap = null;
+                if (bitmap != reusable) {
+                    bitmapPool.release(reusable);
+                }
+                return bitmap;
             }
-            return buf.get() & 0xFF;
-        }
-
-        public int read(byte[] bytes, int off, int len)
-                throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not decode frame", e);
+            bitmapPool.release(reusable);
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
             }
+        }
+    }
 
-            len = Math.min(len, buf.remaining());
-            buf.get(bytes, off, len);
-            return len;
+    /**
+     * Encode the center square of an NV21 frame to a JPEG file.
+     */
+    public void writeNv21AsJpeg(byte[] nv21, int width, int height, File destination)
+            throws IOException {
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        try (FileOutputStream fs = new FileOutputStream(destination);
+             BufferedOutputStream out = new BufferedOutputStream(fs)) {
+            yuvImage.compressToJpeg(region, 99, out);
         }
     }
 
+    public void releaseBitmap(Bitmap bitmap) {
+        bitmapPool.release(bitmap);
+    }
+
     /**
      * Saves a Bitmap object to disk for analysis.
      *
@@ -120,30 +173,4 @@ public class ImagePreprocessor {
             Log.w("ImageHelper", "Could not save image for debugging", e);
         }
     }
-
-    static void cropAndRescaleBitmap(final Bitmap src, final Bitmap dst,
-                                     int sensorOrientation) {
-        Assert.assertEquals(dst.getWidth(), dst.getHeight());
-        final float minDim = Math.min(src.getWidth(), src.getHeight());
-
-        final Matrix matrix = new Matrix();
-
-        // We only want the center square out of the original rectangle.
-        final float translateX = -Math.max(0, (src.getWidth() - minDim) / 2);
-        final float translateY = -Math.max(0, (src.getHeight() - minDim) / 2);
-        matrix.preTranslate(translateX, translateY);
-
-        final float scaleFactor = dst.getHeight() / minDim;
-        matrix.postScale(scaleFactor, scaleFactor);
-
-        // Rotate around the center if necessary.
-        if (sensorOrientation != 0) {
-            matrix.postTranslate(-dst.getWidth() / 2.0f, -dst.getHeight() / 2.0f);
-            matrix.postRotate(sensorOrientation);
-            matrix.postTranslate(dst.getWidth() / 2.0f, dst.getHeight() / 2.0f);
-        }
-
-        final Canvas canvas = new Canvas(dst);
-        canvas.drawBitmap(src, matrix, null);
-    }
-}
\ No newline at end of file
+}
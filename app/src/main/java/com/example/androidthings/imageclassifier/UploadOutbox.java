@@ -0,0 +1,487 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of labelled images waiting to be sent to the cloud. Each image is copied into
+ * the outbox directory and recorded in an append-only journal, so pending items survive
+ * crashes and reboots. A single drainer thread hands items to a {@link Sender}, retrying
+ * failures with exponential backoff and jitter, and drops the oldest items once the outbox is
+ * over its size or age budget.
+ *
+ * Journal lines are {@code ADD id created label file}, {@code DONE id} and {@code DROP id},
+ * separated by tabs. The journal is rewritten with only the pending items once most of its
+ * lines are stale.
+ */
+public class UploadOutbox {
+
+    private static final String TAG = UploadOutbox.class.getSimpleName();
+
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long INITIAL_BACKOFF_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000;
+    private static final int MAX_IN_FLIGHT = 3;
+    /**
+     * Time a send may take before it counts as failed. A sender whose callback is lost, for
+     * instance because the MQTT client was replaced with the message in flight, would
+     * otherwise hold its slot until a restart.
+     */
+    private static final long SEND_TIMEOUT_MILLIS = 3 * 60 * 1000;
+    private static final int COMPACTION_SLACK = 32;
+
+    /**
+     * A labelled image waiting in the outbox.
+     */
+    public static class Item {
+        private final long id;
+        private final long createdMillis;
+        private final String label;
+        private final File file;
+        private int attempts;
+        private long nextAttemptMillis;
+        private boolean inFlight;
+
+        Item(long id, long createdMillis, String label, File file) {
+            this.id = id;
+            this.createdMillis = createdMillis;
+            this.label = label;
+            this.file = file;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            return "Item[" + id + ", " + label + ", attempts=" + attempts + "]";
+        }
+    }
+
+    /**
+     * Notified of the outcome of a {@link Sender#send} call, from any thread.
+     */
+    public interface Callback {
+        void onSent();
+
+        void onFailed(Exception e);
+    }
+
+    /**
+     * Delivers an item to the cloud. Must call exactly one method of the callback; a send
+     * without an outcome after {@link #SEND_TIMEOUT_MILLIS} is retried as if it had failed.
+     */
+    public interface Sender {
+        void send(Item item, Callback callback);
+    }
+
+    private final File directory;
+    private final File journal;
+    private final int maxItems;
+    private final long maxAgeMillis;
+    private final Sender sender;
+    private final Random jitter = new Random();
+    private final ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor();
+
+    /** Pending items by id, oldest first. Only touched on the drainer thread. */
+    private final LinkedHashMap<Long, Item> items = new LinkedHashMap<>();
+    private long nextId;
+    private int journalLines;
+    private Writer journalWriter;
+    /** Stream under {@link #journalWriter}, synced after every record. */
+    private FileOutputStream journalStream;
+    private ScheduledFuture<?> scheduledDrain;
+
+    /**
+     * @param directory    directory the outbox owns, under the app's files dir.
+     * @param maxItems     number of pending items kept at most.
+     * @param maxAgeMillis age after which a pending item is dropped.
+     */
+    public UploadOutbox(File directory, int maxItems, long maxAgeMillis, Sender sender) {
+        this.directory = directory;
+        this.journal = new File(directory, JOURNAL_FILE);
+        this.maxItems = maxItems;
+        this.maxAgeMillis = maxAgeMillis;
+        this.sender = sender;
+        drainer.execute(new Runnable() {
+            @Override
+            public void run() {
+                recover();
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Move {@code image} into the outbox and queue it for sending with {@code label}. The
+     * original is deleted once the copy is on disk and journaled, so the caller must not touch
+     * it after this call.
+     */
+    public void enqueue(final File image, final String label) {
+        drainer.execute(new Runnable() {
+            @Override
+            public void run() {
+                long id = nextId++;
+                File copy = new File(directory, id + "-" + image.getName());
+                try {
+                    copyFile(image, copy);
+                    Item item = new Item(id, System.currentTimeMillis(), label, copy);
+                    appendJournal("ADD\t" + id + "\t" + item.createdMillis + "\t"
+                            + escape(label) + "\t" + copy.getName());
+                    items.put(id, item);
+                    image.delete();
+                    Log.i(TAG, "Queued " + item + ", " + items.size() + " pending");
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot queue " + image, e);
+                    copy.delete();
+                    return;
+                }
+                drain();
+            }
+        });
+    }
+
+    public void shutDown() {
+        drainer.shutdownNow();
+    }
+
+    /**
+     * Send every item that is due, up to {@link #MAX_IN_FLIGHT} at a time, and schedule the
+     * next run for the earliest retry.
+     */
+    private void drain() {
+        enforceBudget();
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        int inFlight = 0;
+        for (Item item : items.values()) {
+            if (item.inFlight) {
+                inFlight++;
+            }
+        }
+        for (final Item item : items.values()) {
+            if (item.inFlight) {
+                continue;
+            }
+            if (item.nextAttemptMillis > now) {
+                nextDue = Math.min(nextDue, item.nextAttemptMillis);
+                continue;
+            }
+            if (inFlight >= MAX_IN_FLIGHT) {
+                break;
+            }
+            item.inFlight = true;
+            inFlight++;
+            final int attempt = ++item.attempts;
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (isPending(item, attempt)) {
+                        retryLater(item, new IOException("No outcome after "
+                                + SEND_TIMEOUT_MILLIS + "ms"));
+                        drain();
+                    }
+                }
+            }, SEND_TIMEOUT_MILLIS);
+            sender.send(item, new Callback() {
+                @Override
+                public void onSent() {
+                    // Also after a timeout: the item got through, so it need not be sent again.
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            complete(item, "DONE");
+                            drain();
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailed(final Exception e) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Ignored once timed out; the item is already waiting to retry.
+                            if (isPending(item, attempt)) {
+                                retryLater(item, e);
+                                drain();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        if (scheduledDrain != null) {
+            scheduledDrain.cancel(false);
+            scheduledDrain = null;
+        }
+        if (nextDue != Long.MAX_VALUE) {
+            scheduledDrain = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, nextDue - now);
+        }
+    }
+
+    /**
+     * Whether {@code attempt} is the send of {@code item} still awaiting its outcome.
+     */
+    private boolean isPending(Item item, int attempt) {
+        return item.inFlight && item.attempts == attempt && items.containsKey(item.id);
+    }
+
+    /**
+     * Run {@code task} on the drainer. Outcomes reported after {@link #shutDown()} are dropped;
+     * the journal still holds their items, which are sent again on the next start.
+     */
+    private void post(Runnable task) {
+        try {
+            drainer.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Outbox shut down, ignoring a send outcome");
+        }
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        try {
+            return drainer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down while draining.
+            return null;
+        }
+    }
+
+    private void retryLater(Item item, Exception e) {
+        item.inFlight = false;
+        if (!items.containsKey(item.id)) {
+            return;
+        }
+        // Full jitter over an exponentially growing window, so devices that lost the uplink
+        // together do not all come back at the same moment.
+        long window = Math.min(MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(item.attempts - 1, 20));
+        long delay = window / 2 + (long) (jitter.nextDouble() * window / 2);
+        item.nextAttemptMillis = System.currentTimeMillis() + delay;
+        Log.w(TAG, "Sending " + item + " failed, retrying in " + delay + "ms: " + e);
+    }
+
+    private void complete(Item item, String record) {
+        item.inFlight = false;
+        if (items.remove(item.id) == null) {
+            return;
+        }
+        item.file.delete();
+        try {
+            appendJournal(record + "\t" + item.id);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot journal " + record + " of " + item, e);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Drop the oldest items beyond the count budget and every item over the age budget.
+     * Items being sent are left alone.
+     */
+    private void enforceBudget() {
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        int excess = items.size() - maxItems;
+        List<Item> dropped = new ArrayList<>();
+        for (Item item : items.values()) {
+            if (item.inFlight) {
+                continue;
+            }
+            if (excess > 0 || item.createdMillis < oldestAllowed) {
+                dropped.add(item);
+                excess--;
+            }
+        }
+        for (Item item : dropped) {
+            Log.w(TAG, "Outbox over budget, dropping " + item);
+            complete(item, "DROP");
+        }
+    }
+
+    /**
+     * Rebuild the pending items from the journal after a restart, and delete images that no
+     * pending item refers to.
+     */
+    private void recover() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create outbox " + directory);
+            return;
+        }
+        if (journal.isFile()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journal), UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    journalLines++;
+                    replay(line);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read outbox journal", e);
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            List<String> referenced = new ArrayList<>();
+            for (Item item : items.values()) {
+                referenced.add(item.file.getName());
+            }
+            for (File file : files) {
+                if (!file.getName().equals(JOURNAL_FILE) && !referenced.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        Log.i(TAG, "Recovered " + items.size() + " pending item(s)");
+        compactIfNeeded();
+    }
+
+    private void replay(String line) {
+        String[] fields = line.split("\t", -1);
+        try {
+            long id = Long.parseLong(fields[1]);
+            nextId = Math.max(nextId, id + 1);
+            if ("ADD".equals(fields[0]) && fields.length == 5) {
+                File file = new File(directory, fields[4]);
+                if (file.isFile()) {
+                    items.put(id, new Item(id, Long.parseLong(fields[2]), unescape(fields[3]),
+                            file));
+                }
+            } else {
+                items.remove(id);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // A line cut short by a crash while it was appended.
+            Log.w(TAG, "Skipping corrupt journal line");
+        }
+    }
+
+    private void appendJournal(String line) throws IOException {
+        if (journalWriter == null) {
+            journalStream = new FileOutputStream(journal, true);
+            journalWriter = new OutputStreamWriter(journalStream, UTF_8);
+        }
+        journalWriter.write(line);
+        journalWriter.write('\n');
+        journalWriter.flush();
+        // An item or its removal only counts once it survives a power cut.
+        journalStream.getFD().sync();
+        journalLines++;
+    }
+
+    private void compactIfNeeded() {
+        if (journalLines <= items.size() * 2 + COMPACTION_SLACK) {
+            return;
+        }
+        File temp = new File(directory, JOURNAL_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp);
+             Writer writer = new OutputStreamWriter(out, UTF_8)) {
+            for (Item item : items.values()) {
+                writer.write("ADD\t" + item.id + "\t" + item.createdMillis + "\t"
+                        + escape(item.label) + "\t" + item.file.getName() + "\n");
+            }
+            writer.flush();
+            // Synced before the rename, or a crash could leave an empty journal in its place.
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot compact outbox journal", e);
+            temp.delete();
+            return;
+        }
+        closeJournal();
+        if (temp.renameTo(journal)) {
+            journalLines = items.size();
+        } else {
+            Log.e(TAG, "Cannot replace outbox journal");
+        }
+    }
+
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+            journalWriter = null;
+            journalStream = null;
+        }
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(destination)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            // The journal points at the copy, so it must be on disk first.
+            out.getFD().sync();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+/**
+ * Configuration container for {@link TensorFlowImageClassifier}.
+ */
+public class ClassifierOptions {
+
+    public static final int DEFAULT_POOL_SIZE = 1;
+    public static final int DEFAULT_NUM_THREADS = 1;
+    public static final int DEFAULT_MAX_RESULTS = 3;
+    public static final float DEFAULT_MIN_CONFIDENCE = 0f;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 8;
+    public static final float DEFAULT_IMAGE_MEAN = 128f;
+    public static final float DEFAULT_IMAGE_STD = 128f;
+    /** Synthetic inferences per interpreter before a classifier is reported ready. */
+    public static final int DEFAULT_WARM_UP_ITERATIONS = 3;
+
+    /**
+     * Dimensions of the image expected by the model.
+     */
+    private final int inputImageWidth;
+    private final int inputImageHeight;
+
+    /**
+     * Number of interpreters kept in the pool, i.e. how many frames can be classified at once.
+     */
+    private int poolSize = DEFAULT_POOL_SIZE;
+
+    /**
+     * Number of threads each interpreter may use for a single inference.
+     */
+    private int numThreads = DEFAULT_NUM_THREADS;
+
+    /**
+     * Number of best results reported per frame.
+     */
+    private int maxResults = DEFAULT_MAX_RESULTS;
+
+    /**
+     * Results below this confidence are never reported.
+     */
+    private float minConfidence = DEFAULT_MIN_CONFIDENCE;
+
+    /**
+     * Largest number of images run through an interpreter in a single invocation. Bounds the
+     * memory of the batch input buffer.
+     */
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /**
+     * Normalization applied to every channel of a float model: (value - mean) / std.
+     */
+    private float imageMean = DEFAULT_IMAGE_MEAN;
+    private float imageStd = DEFAULT_IMAGE_STD;
+
+    /**
+     * Synthetic inferences run on every interpreter before the classifier is used, so the
+     * first frame does not pay for tensor allocation and cold caches.
+     */
+    private int warmUpIterations = DEFAULT_WARM_UP_ITERATIONS;
+
+    public ClassifierOptions(int inputImageWidth, int inputImageHeight) {
+        this.inputImageWidth = inputImageWidth;
+        this.inputImageHeight = inputImageHeight;
+    }
+
+    public int getInputImageWidth() {
+        return inputImageWidth;
+    }
+
+    public int getInputImageHeight() {
+        return inputImageHeight;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public ClassifierOptions setPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1: " + poolSize);
+        }
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public ClassifierOptions setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1: " + numThreads);
+        }
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public ClassifierOptions setMaxResults(int maxResults) {
+        if (maxResults < 1) {
+            throw new IllegalArgumentException("Must report at least one result: " + maxResults);
+        }
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    public ClassifierOptions setMinConfidence(float minConfidence) {
+        this.minConfidence = minConfidence;
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public ClassifierOptions setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public float getImageMean() {
+        return imageMean;
+    }
+
+    public float getImageStd() {
+        return imageStd;
+    }
+
+    public ClassifierOptions setNormalization(float imageMean, float imageStd) {
+        if (imageStd == 0f) {
+            throw new IllegalArgumentException("Standard deviation must not be 0");
+        }
+        this.imageMean = imageMean;
+        this.imageStd = imageStd;
+        return this;
+    }
+
+    public int getWarmUpIterations() {
+        return warmUpIterations;
+    }
+
+    public ClassifierOptions setWarmUpIterations(int warmUpIterations) {
+        if (warmUpIterations < 0) {
+            throw new IllegalArgumentException("Negative warm-up iterations: " + warmUpIterations);
+        }
+        this.warmUpIterations = warmUpIterations;
+        return this;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One TensorFlow Lite interpreter together with the buffers it reads from and writes to.
+ * A slot is not thread-safe: it must be checked out of an {@link InterpreterPool} before use
+ * and returned once the results have been consumed.
+ */
+public class InferenceSlot {
+
+    private static final String TAG = "InferenceSlot";
+
+    /** Dimensions of inputs. */
+    private static final int DIM_PIXEL_SIZE = 3;
+
+    /** Labels for categories that the TensorFlow model is trained for. */
+    private final List<String> labels;
+
+    /** Whether the model takes one unsigned byte per channel instead of a float. */
+    private final boolean quantizedInput;
+
+    /** Whether the model produces one unsigned byte per label instead of a float. */
+    private final boolean quantizedOutput;
+
+    /** Input dimensions and the batch size the input tensor is currently sized for. */
+    private final int inputWidth;
+    private final int inputHeight;
+    private final int maxBatchSize;
+    private int currentBatchSize = 1;
+
+    /** Cache to hold image data. */
+    private final ByteBuffer imgData;
+
+    /**
+     * Batch inputs and outputs, indexed by batch size and allocated on first use. The interpreter
+     * rejects buffers and arrays that do not match the batch dimension exactly, so each size
+     * gets its own.
+     */
+    private final ByteBuffer[] batchImgData;
+    private final float[][][] batchConfidencePerLabel;
+    private final byte[][][] batchQuantizedConfidencePerLabel;
+
+    /** Inference results (Tensorflow Lite output), or the dequantized copy of them. */
+    private final float[][] confidencePerLabel;
+
+    /** Raw inference results of a quantized model. */
+    private final byte[][] quantizedConfidencePerLabel;
+
+    /** Picks the best results out of {@link #confidencePerLabel}. */
+    private final TopKSelector topKSelector;
+
+    /** Crops, resizes and normalizes source pixels into the input buffers. */
+    private final InputTensorWriter inputWriter;
+
+    /** Buffer for the pixels of the source bitmap, grown to the largest source seen. */
+    private int[] sourcePixels;
+
+    /** TensorFlow Lite engine */
+    private final Interpreter tfLite;
+
+    /** Input shape as loaded, before any batch resize. */
+    private final int[] modelInputShape;
+
+    /** Latency of real inferences, shared by the slots of a pool. Warm-up runs are excluded. */
+    private final LatencyStats latency;
+
+    /** Time at which the slot was last checked out, used for pool utilization. */
+    long checkedOutAtNanos;
+
+    InferenceSlot(ByteBuffer model, List<String> labels, ClassifierOptions options,
+                  LatencyStats latency) {
+        this.tfLite = new Interpreter(model,
+                new Interpreter.Options().setNumThreads(options.getNumThreads()));
+        this.labels = labels;
+        this.latency = latency;
+
+        // Quantized models are detected from the tensor types rather than configured, so the
+        // same code path can serve both float and uint8 MobileNets.
+        quantizedInput = tfLite.getInputTensor(0).dataType() == DataType.UINT8;
+        quantizedOutput = tfLite.getOutputTensor(0).dataType() == DataType.UINT8;
+        modelInputShape = tfLite.getInputTensor(0).shape();
+
+        inputWidth = options.getInputImageWidth();
+        inputHeight = options.getInputImageHeight();
+        maxBatchSize = options.getMaxBatchSize();
+        batchImgData = new ByteBuffer[maxBatchSize + 1];
+        batchConfidencePerLabel = new float[maxBatchSize + 1][][];
+        batchQuantizedConfidencePerLabel = quantizedOutput ? new byte[maxBatchSize + 1][][] : null;
+        imgData = ByteBuffer.allocateDirect(getImageSizeInBytes());
+        imgData.order(ByteOrder.nativeOrder());
+        confidencePerLabel = new float[1][labels.size()];
+        quantizedConfidencePerLabel = quantizedOutput ? new byte[1][labels.size()] : null;
+
+        topKSelector = new TopKSelector(labels, options.getMaxResults(),
+                options.getMinConfidence());
+
+        inputWriter = new InputTensorWriter(inputWidth, inputHeight, options.getImageMean(),
+                options.getImageStd(), quantizedInput);
+    }
+
+    private int getImageSizeInBytes() {
+        int bytesPerChannel = quantizedInput ? 1 : 4;
+        return bytesPerChannel * inputWidth * inputHeight * DIM_PIXEL_SIZE;
+    }
+
+    /**
+     * Append an image of any size to {@code out}. Only the center square of the bitmap is
+     * copied out of it; cropping, scaling and normalization happen in a single pass.
+     */
+    private void writeImage(Bitmap image, ByteBuffer out) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int minDim = Math.min(width, height);
+        if (sourcePixels == null || sourcePixels.length < minDim * minDim) {
+            sourcePixels = new int[minDim * minDim];
+        }
+        image.getPixels(sourcePixels, 0, minDim, (width - minDim) / 2, (height - minDim) / 2,
+                minDim, minDim);
+        inputWriter.write(sourcePixels, minDim, minDim, out);
+    }
+
+    /**
+     * Resize the input tensor of the interpreter, which makes it reallocate its tensors on the
+     * next run, so only do it when the batch size actually changes.
+     */
+    private void resizeBatch(int batchSize) {
+        if (batchSize != currentBatchSize) {
+            tfLite.resizeInput(0, new int[] {batchSize, inputHeight, inputWidth, DIM_PIXEL_SIZE});
+            currentBatchSize = batchSize;
+        }
+    }
+
+    /**
+     * @param image Bitmap containing the image to be classified. Its center square is
+     *              resized to the input size of the model.
+     * @return the best results, which are reused by the next call on this slot.
+     */
+    public List<Recognition> recognize(Bitmap image) {
+        resizeBatch(1);
+        imgData.clear();
+        writeImage(image, imgData);
+        imgData.flip();
+        return run();
+    }
+
+    private List<Recognition> run() {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        invoke();
+        long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+        latency.record(elapsed);
+        Log.d(TAG, "Timecost to run model inference: "
+                + Long.toString(TimeUnit.NANOSECONDS.toMillis(elapsed)));
+
+        // Get the results with the highest confidence and map them to their labels
+        return topKSelector.select(confidencePerLabel[0]);
+    }
+
+    private void invoke() {
+        if (quantizedOutput) {
+            tfLite.run(imgData, quantizedConfidencePerLabel);
+            TensorFlowHelper.dequantize(quantizedConfidencePerLabel, confidencePerLabel);
+        } else {
+            tfLite.run(imgData, confidencePerLabel);
+        }
+    }
+
+    /**
+     * @param image a YUV_420_888 camera frame. Its center square is converted and resized to
+     *              the input size of the model straight from the image planes.
+     * @return the best results, which are reused by the next call on this slot.
+     */
+    public List<Recognition> recognizeYuv(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        resizeBatch(1);
+        imgData.clear();
+        inputWriter.writeYuv(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                planes[1].getPixelStride(), image.getWidth(), image.getHeight(), imgData);
+        imgData.flip();
+        return run();
+    }
+
+    /**
+     * @param nv21 an NV21 frame: the luma plane followed by interleaved V/U samples.
+     * @return the best results, which are reused by the next call on this slot.
+     */
+    public List<Recognition> recognizeNv21(byte[] nv21, int width, int height) {
+        resizeBatch(1);
+        imgData.clear();
+        inputWriter.writeNv21(nv21, width, height, imgData);
+        imgData.flip();
+        return run();
+    }
+
+    /**
+     * Classify several images with a single interpreter invocation. Batches larger than the
+     * configured maximum batch size are split.
+     *
+     * @param images Bitmaps to classify, of any size.
+     * @return a copy of the best results for each image, in the order of {@code images}.
+     */
+    public List<List<Recognition>> recognizeBatch(List<Bitmap> images) {
+        List<List<Recognition>> results = new ArrayList<>(images.size());
+        for (int start = 0; start < images.size(); start += maxBatchSize) {
+            int end = Math.min(images.size(), start + maxBatchSize);
+            recognizeChunk(images.subList(start, end), results);
+        }
+        return results;
+    }
+
+    private void recognizeChunk(List<Bitmap> images, List<List<Recognition>> results) {
+        int batchSize = images.size();
+        ByteBuffer input = batchImgData[batchSize];
+        if (input == null) {
+            input = ByteBuffer.allocateDirect(batchSize * getImageSizeInBytes());
+            input.order(ByteOrder.nativeOrder());
+            batchImgData[batchSize] = input;
+            batchConfidencePerLabel[batchSize] = new float[batchSize][labels.size()];
+            if (quantizedOutput) {
+                batchQuantizedConfidencePerLabel[batchSize] = new byte[batchSize][labels.size()];
+            }
+        }
+        float[][] output = batchConfidencePerLabel[batchSize];
+
+        resizeBatch(batchSize);
+        input.clear();
+        for (int i = 0; i < batchSize; ++i) {
+            writeImage(images.get(i), input);
+        }
+        input.flip();
+
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        if (quantizedOutput) {
+            byte[][] quantized = batchQuantizedConfidencePerLabel[batchSize];
+            tfLite.run(input, quantized);
+            TensorFlowHelper.dequantize(quantized, output);
+        } else {
+            tfLite.run(input, output);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+        latency.record(elapsed);
+        Log.d(TAG, "Timecost to run batch of " + batchSize + " through the model: "
+                + Long.toString(TimeUnit.NANOSECONDS.toMillis(elapsed)));
+
+        for (int i = 0; i < batchSize; ++i) {
+            List<Recognition> best = topKSelector.select(output[i]);
+            List<Recognition> copy = new ArrayList<>(best.size());
+            for (int j = 0; j < best.size(); ++j) {
+                copy.add(best.get(j).copy());
+            }
+            results.add(copy);
+        }
+    }
+
+    /**
+     * Run a synthetic image through the interpreter, without recording its latency.
+     */
+    void warmUp(Random noise) {
+        resizeBatch(1);
+        imgData.clear();
+        if (quantizedInput) {
+            while (imgData.hasRemaining()) {
+                imgData.put((byte) noise.nextInt(256));
+            }
+        } else {
+            while (imgData.hasRemaining()) {
+                imgData.putFloat(noise.nextFloat() * 2f - 1f);
+            }
+        }
+        imgData.flip();
+        invoke();
+    }
+
+    public boolean isQuantized() {
+        return quantizedInput;
+    }
+
+    /**
+     * @return the input shape stored in the model, whatever batch size the slot resized to.
+     */
+    int[] getModelInputShape() {
+        return modelInputShape;
+    }
+
+    void close() {
+        tfLite.close();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Turns ARGB source pixels, YUV_420_888 planes or NV21 frames into model input in a single
+ * pass: the center square of the source is cropped, bilinearly resized to the model input size
+ * and normalized straight into the input {@code ByteBuffer}, without an intermediate Bitmap.
+ *
+ * Not thread-safe; every {@link InferenceSlot} owns one.
+ */
+public class InputTensorWriter {
+
+    /** Fixed point precision of the interpolation weights. */
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int ROUNDING = 1 << (2 * WEIGHT_BITS - 1);
+
+    private final int dstWidth;
+    private final int dstHeight;
+    private final boolean quantized;
+
+    /** (value - mean) / std for every possible channel value. */
+    private final float[] normalized = new float[256];
+
+    /** One output row, written to the buffer in bulk. */
+    private final float[] floatRow;
+    private final byte[] byteRow;
+
+    /** Float view of the last output buffer, so it isn't recreated for every frame. */
+    private ByteBuffer lastOut;
+    private FloatBuffer lastOutAsFloats;
+
+    /** Sampling tables for the last seen source size. */
+    private int srcWidth = -1;
+    private int srcHeight = -1;
+    private final int[] xIndex0;
+    private final int[] xIndex1;
+    private final int[] xWeight;
+    private final int[] yIndex0;
+    private final int[] yIndex1;
+    private final int[] yWeight;
+
+    public InputTensorWriter(int dstWidth, int dstHeight, float imageMean, float imageStd,
+                             boolean quantized) {
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.quantized = quantized;
+        for (int i = 0; i < normalized.length; ++i) {
+            normalized[i] = (i - imageMean) / imageStd;
+        }
+        floatRow = quantized ? null : new float[dstWidth * 3];
+        byteRow = quantized ? new byte[dstWidth * 3] : null;
+        xIndex0 = new int[dstWidth];
+        xIndex1 = new int[dstWidth];
+        xWeight = new int[dstWidth];
+        yIndex0 = new int[dstHeight];
+        yIndex1 = new int[dstHeight];
+        yWeight = new int[dstHeight];
+    }
+
+    /**
+     * Write one image at the current position of {@code out}, advancing it by the size of one
+     * input image.
+     *
+     * @param pixels ARGB pixels of the source, row by row.
+     */
+    public void write(int[] pixels, int width, int height, ByteBuffer out) {
+        prepareSampling(width, height);
+        FloatBuffer floats = quantized ? null : floatView(out);
+
+        for (int dy = 0; dy < dstHeight; ++dy) {
+            int row0 = yIndex0[dy] * width;
+            int row1 = yIndex1[dy] * width;
+            int wy1 = yWeight[dy];
+            int wy0 = WEIGHT_ONE - wy1;
+            int o = 0;
+            for (int dx = 0; dx < dstWidth; ++dx) {
+                int x0 = xIndex0[dx];
+                int x1 = xIndex1[dx];
+                int wx1 = xWeight[dx];
+                int wx0 = WEIGHT_ONE - wx1;
+                int p00 = pixels[row0 + x0];
+                int p01 = pixels[row0 + x1];
+                int p10 = pixels[row1 + x0];
+                int p11 = pixels[row1 + x1];
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int top = ((p00 >> shift) & 0xFF) * wx0 + ((p01 >> shift) & 0xFF) * wx1;
+                    int bottom = ((p10 >> shift) & 0xFF) * wx0 + ((p11 >> shift) & 0xFF) * wx1;
+                    int value = (top * wy0 + bottom * wy1 + ROUNDING) >> (2 * WEIGHT_BITS);
+                    if (quantized) {
+                        byteRow[o++] = (byte) value;
+                    } else {
+                        floatRow[o++] = normalized[value];
+                    }
+                }
+            }
+            if (quantized) {
+                out.put(byteRow);
+            } else {
+                floats.put(floatRow);
+            }
+        }
+        if (!quantized) {
+            out.position(floats.position() * 4);
+        }
+    }
+
+    /**
+     * Write one YUV_420_888 frame at the current position of {@code out}, advancing it by the
+     * size of one input image, reading the planes in place with their row and pixel strides.
+     * Sampled like {@link #writeNv21}.
+     */
+    public void writeYuv(ByteBuffer yPlane, int yRowStride, ByteBuffer uPlane, ByteBuffer vPlane,
+                         int uvRowStride, int uvPixelStride, int width, int height,
+                         ByteBuffer out) {
+        prepareSampling(width, height);
+        FloatBuffer floats = quantized ? null : floatView(out);
+
+        for (int dy = 0; dy < dstHeight; ++dy) {
+            int row0 = yIndex0[dy] * yRowStride;
+            int row1 = yIndex1[dy] * yRowStride;
+            int uvRow = (yIndex0[dy] >> 1) * uvRowStride;
+            int wy1 = yWeight[dy];
+            int wy0 = WEIGHT_ONE - wy1;
+            int o = 0;
+            for (int dx = 0; dx < dstWidth; ++dx) {
+                int x0 = xIndex0[dx];
+                int x1 = xIndex1[dx];
+                int wx1 = xWeight[dx];
+                int wx0 = WEIGHT_ONE - wx1;
+                int top = (yPlane.get(row0 + x0) & 0xFF) * wx0
+                        + (yPlane.get(row0 + x1) & 0xFF) * wx1;
+                int bottom = (yPlane.get(row1 + x0) & 0xFF) * wx0
+                        + (yPlane.get(row1 + x1) & 0xFF) * wx1;
+                int luma = (top * wy0 + bottom * wy1 + ROUNDING) >> (2 * WEIGHT_BITS);
+
+                int uvIndex = uvRow + (x0 >> 1) * uvPixelStride;
+                int u = (uPlane.get(uvIndex) & 0xFF) - 128;
+                int v = (vPlane.get(uvIndex) & 0xFF) - 128;
+
+                // BT.601 full range, as used by the camera's JPEG encoder, in 8 bit fixed point.
+                int r = clamp(luma + ((359 * v) >> 8));
+                int g = clamp(luma - ((88 * u + 183 * v) >> 8));
+                int b = clamp(luma + ((454 * u) >> 8));
+                if (quantized) {
+                    byteRow[o++] = (byte) r;
+                    byteRow[o++] = (byte) g;
+                    byteRow[o++] = (byte) b;
+                } else {
+                    floatRow[o++] = normalized[r];
+                    floatRow[o++] = normalized[g];
+                    floatRow[o++] = normalized[b];
+                }
+            }
+            if (quantized) {
+                out.put(byteRow);
+            } else {
+                floats.put(floatRow);
+            }
+        }
+        if (!quantized) {
+            out.position(floats.position() * 4);
+        }
+    }
+
+    /**
+     * Write one NV21 frame at the current position of {@code out}, advancing it by the size of
+     * one input image. Luma is sampled bilinearly; chroma, which is already subsampled by the
+     * camera, is taken from the nearest sample. Only the pixels that end up in the model input
+     * are converted to RGB.
+     */
+    public void writeNv21(byte[] nv21, int width, int height, ByteBuffer out) {
+        prepareSampling(width, height);
+        FloatBuffer floats = quantized ? null : floatView(out);
+
+        for (int dy = 0; dy < dstHeight; ++dy) {
+            int row0 = yIndex0[dy] * width;
+            int row1 = yIndex1[dy] * width;
+            // Interleaved V/U samples follow the luma plane, one pair per two pixels.
+            int uvRow = width * height + (yIndex0[dy] >> 1) * width;
+            int wy1 = yWeight[dy];
+            int wy0 = WEIGHT_ONE - wy1;
+            int o = 0;
+            for (int dx = 0; dx < dstWidth; ++dx) {
+                int x0 = xIndex0[dx];
+                int x1 = xIndex1[dx];
+                int wx1 = xWeight[dx];
+                int wx0 = WEIGHT_ONE - wx1;
+                int top = (nv21[row0 + x0] & 0xFF) * wx0 + (nv21[row0 + x1] & 0xFF) * wx1;
+                int bottom = (nv21[row1 + x0] & 0xFF) * wx0 + (nv21[row1 + x1] & 0xFF) * wx1;
+                int luma = (top * wy0 + bottom * wy1 + ROUNDING) >> (2 * WEIGHT_BITS);
+
+                int uvIndex = uvRow + (x0 & ~1);
+                int v = (nv21[uvIndex] & 0xFF) - 128;
+                int u = (nv21[uvIndex + 1] & 0xFF) - 128;
+
+                // BT.601 full range, as used by the camera's JPEG encoder, in 8 bit fixed point.
+                int r = clamp(luma + ((359 * v) >> 8));
+                int g = clamp(luma - ((88 * u + 183 * v) >> 8));
+                int b = clamp(luma + ((454 * u) >> 8));
+                if (quantized) {
+                    byteRow[o++] = (byte) r;
+                    byteRow[o++] = (byte) g;
+                    byteRow[o++] = (byte) b;
+                } else {
+                    floatRow[o++] = normalized[r];
+                    floatRow[o++] = normalized[g];
+                    floatRow[o++] = normalized[b];
+                }
+            }
+            if (quantized) {
+                out.put(byteRow);
+            } else {
+                floats.put(floatRow);
+            }
+        }
+        if (!quantized) {
+            out.position(floats.position() * 4);
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Float view of {@code out}, positioned where the next image goes.
+     */
+    private FloatBuffer floatView(ByteBuffer out) {
+        if (out != lastOut) {
+            ByteBuffer whole = out.duplicate();
+            whole.clear();
+            whole.order(out.order());
+            lastOut = out;
+            lastOutAsFloats = whole.asFloatBuffer();
+        }
+        lastOutAsFloats.position(out.position() / 4);
+        return lastOutAsFloats;
+    }
+
+    /**
+     * Compute, for every output row and column, the two source pixels it falls between and the
+     * weight of the second one. Only redone when the source size changes.
+     */
+    private void prepareSampling(int width, int height) {
+        if (width == srcWidth && height == srcHeight) {
+            return;
+        }
+        int minDim = Math.min(width, height);
+        fillSampling((width - minDim) / 2, minDim, dstWidth, xIndex0, xIndex1, xWeight);
+        fillSampling((height - minDim) / 2, minDim, dstHeight, yIndex0, yIndex1, yWeight);
+        srcWidth = width;
+        srcHeight = height;
+    }
+
+    private static void fillSampling(int offset, int srcSize, int dstSize,
+                                     int[] index0, int[] index1, int[] weight) {
+        float scale = (float) srcSize / dstSize;
+        for (int i = 0; i < dstSize; ++i) {
+            float src = (i + 0.5f) * scale - 0.5f;
+            if (src < 0) {
+                src = 0;
+            }
+            int i0 = Math.min((int) src, srcSize - 1);
+            int i1 = Math.min(i0 + 1, srcSize - 1);
+            index0[i] = offset + i0;
+            index1[i] = offset + i1;
+            weight[i] = Math.round((src - i0) * WEIGHT_ONE);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of {@link InferenceSlot}s sharing the same model. Threads check a slot out,
+ * run inference on it and check it back in, blocking while every slot is busy.
+ */
+public class InterpreterPool {
+
+    private final List<InferenceSlot> slots;
+    private final ArrayBlockingQueue<InferenceSlot> idleSlots;
+    private final long createdAtNanos;
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicLong checkouts = new AtomicLong(0);
+    private final AtomicLong busyNanos = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+    private final int warmUpIterations;
+    private final LatencyStats warmUpLatency = new LatencyStats();
+    private final LatencyStats latency = new LatencyStats();
+
+    InterpreterPool(ByteBuffer model, List<String> labels, ClassifierOptions options) {
+        int size = options.getPoolSize();
+        slots = new ArrayList<>(size);
+        idleSlots = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            InferenceSlot slot = new InferenceSlot(model, labels, options, latency);
+            slots.add(slot);
+            idleSlots.add(slot);
+        }
+        warmUpIterations = options.getWarmUpIterations();
+        createdAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Take an idle slot, waiting for one to be returned if all of them are in use.
+     */
+    public InferenceSlot checkout() throws InterruptedException {
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        InferenceSlot slot;
+        try {
+            slot = idleSlots.take();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        long now = System.nanoTime();
+        long waited = now - start;
+        waitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get())
+                && !maxWaitNanos.compareAndSet(max, waited)) {
+            // retry
+        }
+        checkouts.incrementAndGet();
+        slot.checkedOutAtNanos = now;
+        return slot;
+    }
+
+    /**
+     * Return a slot obtained through {@link #checkout()}.
+     */
+    public void checkin(InferenceSlot slot) {
+        busyNanos.addAndGet(System.nanoTime() - slot.checkedOutAtNanos);
+        idleSlots.offer(slot);
+    }
+
+    public int getSize() {
+        return slots.size();
+    }
+
+    /**
+     * Whether the model of this pool takes uint8 input.
+     */
+    public boolean isQuantized() {
+        return slots.get(0).isQuantized();
+    }
+
+    /**
+     * Shape of the input tensor the model was built with: batch, height, width and channels.
+     */
+    public int[] getModelInputShape() {
+        return slots.get(0).getModelInputShape();
+    }
+
+    public int getInUseCount() {
+        return slots.size() - idleSlots.size();
+    }
+
+    /**
+     * Number of threads currently blocked in {@link #checkout()}.
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * Fraction of the pool's lifetime the slots spent checked out, between 0 and 1.
+     */
+    public float getUtilization() {
+        long elapsed = (System.nanoTime() - createdAtNanos) * slots.size();
+        return elapsed <= 0 ? 0f : (float) busyNanos.get() / elapsed;
+    }
+
+    public long getCheckoutCount() {
+        return checkouts.get();
+    }
+
+    /**
+     * Average time a caller waited for a free slot.
+     */
+    public float getAverageWaitMillis() {
+        long count = checkouts.get();
+        return count == 0 ? 0f : (float) waitNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public float getMaxWaitMillis() {
+        return (float) maxWaitNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Synthetic inferences run by {@link #warmUp()}, kept apart from the real ones.
+     */
+    public LatencyStats getWarmUpLatency() {
+        return warmUpLatency;
+    }
+
+    /**
+     * Inferences of real frames once the pool has been warmed up.
+     */
+    public LatencyStats getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InterpreterPool[size=%d, inUse=%d, waiting=%d, utilization=%.1f%%, "
+                        + "avgWait=%.2fms, maxWait=%.2fms, warmUp=%s, inference=%s]", getSize(),
+                getInUseCount(), getWaitingCount(), getUtilization() * 100f,
+                getAverageWaitMillis(), getMaxWaitMillis(), warmUpLatency, latency);
+    }
+
+    /**
+     * Run the configured number of synthetic inferences on every slot. Each slot is taken out
+     * of the pool for it, so this waits for in-flight inferences and must not be called while
+     * holding a slot.
+     */
+    void warmUp() {
+        List<InferenceSlot> taken = new ArrayList<>(slots.size());
+        Random noise = new Random(0);
+        try {
+            for (int i = 0; i < slots.size(); i++) {
+                taken.add(idleSlots.take());
+            }
+            for (InferenceSlot slot : taken) {
+                for (int i = 0; i < warmUpIterations; i++) {
+                    long start = System.nanoTime();
+                    slot.warmUp(noise);
+                    warmUpLatency.record(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            idleSlots.addAll(taken);
+        }
+    }
+
+    void close() {
+        for (InferenceSlot slot : slots) {
+            slot.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count, average and maximum of a series of durations, safe to record from several threads.
+ */
+public class LatencyStats {
+
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong totalNanos = new AtomicLong(0);
+    private final AtomicLong maxNanos = new AtomicLong(0);
+
+    void record(long nanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public float getTotalMillis() {
+        return (float) totalNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public float getAverageMillis() {
+        long n = count.get();
+        return n == 0 ? 0f : getTotalMillis() / n;
+    }
+
+    public float getMaxMillis() {
+        return (float) maxNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[count=%d, avg=%.2fms, max=%.2fms]", getCount(),
+                getAverageMillis(), getMaxMillis());
+    }
+}
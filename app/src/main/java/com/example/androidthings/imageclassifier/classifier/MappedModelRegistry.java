@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Maps every model file once and shares the read-only mapping between all the classifiers
+ * using it. Each {@code acquire} must be matched by a {@link #release(MappedByteBuffer)} once
+ * the interpreters reading the buffer are closed; the file is unmapped when the last user
+ * releases it, instead of whenever the garbage collector gets to it.
+ */
+public class MappedModelRegistry {
+
+    private static final String TAG = MappedModelRegistry.class.getSimpleName();
+
+    private static class Mapping {
+        final MappedByteBuffer buffer;
+        int references;
+
+        Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Map<String, Mapping> mappings = new HashMap<>();
+
+    // Lazy-loaded singleton, so a model is mapped once per process.
+    private MappedModelRegistry() {
+    }
+
+    private static class InstanceHolder {
+        private static MappedModelRegistry mRegistry = new MappedModelRegistry();
+    }
+
+    public static MappedModelRegistry getInstance() {
+        return InstanceHolder.mRegistry;
+    }
+
+    /**
+     * @return the mapping of a model in the application assets.
+     */
+    public synchronized MappedByteBuffer acquireAsset(Context context, String modelFile)
+            throws IOException {
+        String key = "asset:" + modelFile;
+        Mapping mapping = mappings.get(key);
+        if (mapping == null) {
+            mapping = new Mapping(TensorFlowHelper.loadModelFile(context, modelFile));
+            mappings.put(key, mapping);
+        }
+        mapping.references++;
+        return mapping.buffer;
+    }
+
+    /**
+     * @return the mapping of a model file on disk. A file replaced since it was mapped gets a
+     *         new mapping.
+     */
+    public synchronized MappedByteBuffer acquireFile(File modelFile) throws IOException {
+        String key = modelFile.getCanonicalPath() + "@" + modelFile.lastModified() + ":"
+                + modelFile.length();
+        Mapping mapping = mappings.get(key);
+        if (mapping == null) {
+            mapping = new Mapping(TensorFlowHelper.loadModelFileFromCache(modelFile.getPath()));
+            mappings.put(key, mapping);
+        }
+        mapping.references++;
+        return mapping.buffer;
+    }
+
+    /**
+     * Drop a reference obtained from one of the {@code acquire} methods. Nothing may read the
+     * buffer afterwards.
+     */
+    public synchronized void release(MappedByteBuffer buffer) {
+        Iterator<Map.Entry<String, Mapping>> it = mappings.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Mapping> entry = it.next();
+            Mapping mapping = entry.getValue();
+            if (mapping.buffer == buffer) {
+                if (--mapping.references == 0) {
+                    it.remove();
+                    Log.i(TAG, "Unmapping " + entry.getKey());
+                    unmap(buffer);
+                }
+                return;
+            }
+        }
+        Log.w(TAG, "Released a model buffer that is not registered");
+    }
+
+    public synchronized int getMappedCount() {
+        return mappings.size();
+    }
+
+    /**
+     * Unmap a buffer right away. Android exposes this through a hidden NioUtils method;
+     * other runtimes through the buffer's cleaner. If neither is reachable the mapping is left
+     * to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> nioUtils = Class.forName("java.nio.NioUtils");
+            Method free = nioUtils.getMethod("freeDirectBuffer", ByteBuffer.class);
+            free.invoke(null, buffer);
+            return;
+        } catch (Exception e) {
+            // Not Android, try the cleaner below.
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot unmap model buffer, leaving it to the garbage collector");
+        }
+    }
+}
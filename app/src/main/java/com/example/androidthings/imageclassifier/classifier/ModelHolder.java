@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the classifier currently used for inference and lets a new one replace it while frames
+ * are being classified. Every inference runs between {@link #acquire()} and
+ * {@link #release(TensorFlowImageClassifier)}; a swap only redirects later acquisitions, and
+ * the replaced classifier is closed once its last in-flight inference is released.
+ */
+public class ModelHolder {
+
+    private static final String TAG = "ModelHolder";
+
+    private final AtomicReference<TensorFlowImageClassifier> current = new AtomicReference<>();
+
+    /**
+     * @return the active classifier, which stays open until passed to
+     *         {@link #release(TensorFlowImageClassifier)}, or null if none was installed yet.
+     */
+    public TensorFlowImageClassifier acquire() {
+        while (true) {
+            TensorFlowImageClassifier classifier = current.get();
+            if (classifier == null) {
+                return null;
+            }
+            if (classifier.retain()) {
+                return classifier;
+            }
+            // Swapped out and drained between the read and the retain; read the new one.
+        }
+    }
+
+    public void release(TensorFlowImageClassifier classifier) {
+        classifier.release();
+    }
+
+    /**
+     * Make {@code classifier} the active one. It should be fully loaded and warmed up, since
+     * the next frame will run on it. The holder takes over the caller's reference.
+     */
+    public void swap(TensorFlowImageClassifier classifier) {
+        TensorFlowImageClassifier previous = current.getAndSet(classifier);
+        if (previous != null) {
+            Log.i(TAG, "Model swapped, previous one closes once drained");
+            previous.release();
+        }
+    }
+
+    /**
+     * Remove the active classifier. It closes once its in-flight inferences complete.
+     */
+    public void close() {
+        swap(null);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Description of a model shipped in a bundle, read from its {@code manifest.json}:
+ * <pre>
+ * {"inputWidth": 224, "inputHeight": 224, "tensorType": "uint8",
+ *  "imageMean": 128.0, "imageStd": 128.0}
+ * </pre>
+ * Only the input size is required. {@code tensorType} is {@code float32} or {@code uint8}.
+ */
+public class ModelManifest {
+
+    public static final String FILE_NAME = "manifest.json";
+
+    private static final String TENSOR_TYPE_FLOAT = "float32";
+    private static final String TENSOR_TYPE_UINT8 = "uint8";
+
+    private final int inputWidth;
+    private final int inputHeight;
+    /** Null when the manifest does not declare it. */
+    private final String tensorType;
+    private final float imageMean;
+    private final float imageStd;
+
+    private ModelManifest(JSONObject json) throws JSONException {
+        inputWidth = json.getInt("inputWidth");
+        inputHeight = json.getInt("inputHeight");
+        tensorType = json.has("tensorType") ? json.getString("tensorType") : null;
+        imageMean = (float) json.optDouble("imageMean", ClassifierOptions.DEFAULT_IMAGE_MEAN);
+        imageStd = (float) json.optDouble("imageStd", ClassifierOptions.DEFAULT_IMAGE_STD);
+    }
+
+    public static ModelManifest read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new IOException("Truncated manifest " + file);
+                }
+                read += n;
+            }
+        }
+        try {
+            ModelManifest manifest =
+                    new ModelManifest(new JSONObject(new String(bytes, Charset.forName("UTF-8"))));
+            if (manifest.tensorType != null && !TENSOR_TYPE_FLOAT.equals(manifest.tensorType)
+                    && !TENSOR_TYPE_UINT8.equals(manifest.tensorType)) {
+                throw new IOException("Unknown tensor type " + manifest.tensorType);
+            }
+            return manifest;
+        } catch (JSONException e) {
+            throw new IOException("Invalid manifest " + file, e);
+        }
+    }
+
+    /**
+     * Options with the input size and normalization of this model, to which the caller adds
+     * its own pool and threading settings.
+     */
+    public ClassifierOptions newOptions() {
+        return new ClassifierOptions(inputWidth, inputHeight)
+                .setNormalization(imageMean, imageStd);
+    }
+
+    /**
+     * Check that the model loaded by {@code classifier} has the declared input size and tensor
+     * type, so a mismatched bundle is rejected before any frame runs on it.
+     */
+    public void verify(TensorFlowImageClassifier classifier) throws IOException {
+        int[] shape = classifier.getPool().getModelInputShape();
+        if (shape.length != 4 || shape[1] != inputHeight || shape[2] != inputWidth) {
+            throw new IOException("Manifest declares " + inputWidth + "x" + inputHeight
+                    + " input, model expects " + Arrays.toString(shape));
+        }
+        if (tensorType != null
+                && TENSOR_TYPE_UINT8.equals(tensorType) != classifier.getPool().isQuantized()) {
+            throw new IOException("Manifest declares " + tensorType + " input, model disagrees");
+        }
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "ModelManifest[" + inputWidth + "x" + inputHeight + ", " + tensorType
+                + ", mean=" + imageMean + ", std=" + imageStd + "]";
+    }
+}
@@ -1,32 +1,41 @@
 package com.example.androidthings.imageclassifier.classifier;
 
 /**
- * An immutable result returned by a Classifier describing what was recognized.
+ * A result returned by a Classifier describing what was recognized. Results handed out by a
+ * {@link TopKSelector} are reused for the next frame; use {@link #copy()} to keep one.
  */
 public class Recognition {
     /**
      * A unique identifier for what has been recognized. Specific to the class, not the instance of
      * the object.
      */
-    private final String id;
+    private String id;
 
     /**
      * Display name for the recognition.
      */
-    private final String title;
+    private String title;
 
     /**
      * A sortable score for how good the recognition is relative to others. Higher should be better.
      */
-    private final Float confidence;
+    private float confidence;
 
     public Recognition(
-            final String id, final String title, final Float confidence) {
+            final String id, final String title, final float confidence) {
+        set(id, title, confidence);
+    }
+
+    void set(final String id, final String title, final float confidence) {
         this.id = id;
         this.title = title;
         this.confidence = confidence;
     }
 
+    public Recognition copy() {
+        return new Recognition(id, title, confidence);
+    }
+
     public String getId() {
         return id;
     }
@@ -35,8 +44,8 @@ public class Recognition {
         return title;
     }
 
-    public Float getConfidence() {
-        return confidence == null ? 0f : confidence;
+    public float getConfidence() {
+        return confidence;
     }
 
     @Override
@@ -50,9 +59,7 @@ public class Recognition {
             resultString += title + " ";
         }
 
-        if (confidence != null) {
-            resultString += String.format("(%.1f%%) ", confidence * 100.0f);
-        }
+        resultString += String.format("(%.1f%%) ", confidence * 100.0f);
 
         return resultString.trim();
     }
@@ -17,43 +17,43 @@ package com.example.androidthings.imageclassifier.classifier;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.media.Image;
 import android.os.SystemClock;
 import android.util.Log;
 
-import org.tensorflow.lite.Interpreter;
-
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A classifier specialized to label images using TensorFlow.
+ *
+ * The classifier owns a pool of interpreters created from the same model, so
+ * {@link #doRecognize(Bitmap)} may be called concurrently from several threads.
  */
 public class TensorFlowImageClassifier {
 
     private static final String TAG = "TFImageClassifier";
 
-    /** Dimensions of inputs. */
-    private static final int DIM_BATCH_SIZE = 1;
-    private static final int DIM_PIXEL_SIZE = 3;
-
     /** Labels for categories that the TensorFlow model is trained for. */
     private List<String> labels;
 
-    /** Cache to hold image data. */
-    private ByteBuffer imgData = null;
-
-    /** Inference results (Tensorflow Lite output). */
-    private float[][] confidencePerLabel = null;
+    /** Interpreters, each with its own input and output buffers. */
+    private InterpreterPool pool;
 
-    /** Pre-allocated buffer for intermediate bitmap pixels */
-    private int[] intValues;
+    /** Model mapping shared through {@link MappedModelRegistry}, released on destroy. */
+    private MappedByteBuffer model;
 
-    /** TensorFlow Lite engine */
-    private Interpreter tfLite;
+    /**
+     * Owners of this classifier: its creator plus every in-flight inference that went through
+     * {@link #retain()}. The interpreters are closed when the count drops to zero.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
 
     /**
      * Initializes a TensorFlow Lite session for classifying images.
@@ -61,58 +61,200 @@ public class TensorFlowImageClassifier {
     public TensorFlowImageClassifier(Context context, String modelFile, String labelFile,
                                      int inputImageWidth, int inputImageHeight, boolean isInAssets)
             throws IOException {
+        this(context, modelFile, labelFile,
+                new ClassifierOptions(inputImageWidth, inputImageHeight), isInAssets);
+    }
 
+    /**
+     * Initializes a pool of TensorFlow Lite sessions for classifying images.
+     */
+    public TensorFlowImageClassifier(Context context, String modelFile, String labelFile,
+                                     ClassifierOptions options, boolean isInAssets)
+            throws IOException {
+        MappedModelRegistry registry = MappedModelRegistry.getInstance();
         if (isInAssets){
-            this.tfLite = new Interpreter(TensorFlowHelper.loadModelFile(context, modelFile));
             this.labels = TensorFlowHelper.readLabels(context, labelFile);
+            model = registry.acquireAsset(context, modelFile);
         }
         else{
-            this.tfLite = new Interpreter(TensorFlowHelper.loadModelFileFromCache(modelFile));
             this.labels = TensorFlowHelper.readLabelsFromCache(labelFile);
+            model = registry.acquireFile(new File(modelFile));
+        }
+
+        try {
+            this.pool = new InterpreterPool(model, labels, options);
+        } catch (RuntimeException e) {
+            registry.release(model);
+            throw e;
+        }
+        Log.i(TAG, "Created " + options.getPoolSize() + " interpreter(s) with "
+                + options.getNumThreads() + " thread(s) each, quantized model: "
+                + pool.isQuantized());
+    }
+
+    /**
+     * Clean up the resources used by the classifier.
+     */
+    public synchronized void destroyClassifier() {
+        if (model == null) {
+            return;
         }
+        pool.close();
+        // Only once no interpreter can read it any more.
+        MappedModelRegistry.getInstance().release(model);
+        model = null;
+    }
 
+    /**
+     * Run synthetic inputs through every interpreter, as many times as configured by
+     * {@link ClassifierOptions#setWarmUpIterations(int)}, so they allocate their tensors before
+     * the first real frame arrives.
+     */
+    public void warmUp() {
+        long start = SystemClock.elapsedRealtime();
+        pool.warmUp();
+        Log.i(TAG, "Warm-up took " + (SystemClock.elapsedRealtime() - start) + "ms, "
+                + pool.getWarmUpLatency());
+    }
 
-        imgData =
-                ByteBuffer.allocateDirect(
-                        4 * DIM_BATCH_SIZE * inputImageWidth * inputImageHeight * DIM_PIXEL_SIZE);
-        imgData.order(ByteOrder.nativeOrder());
-        confidencePerLabel = new float[1][labels.size()];
+    /**
+     * Take a reference on the classifier so it stays open while it is used.
+     *
+     * @return false if the classifier has already been released by all of its owners.
+     */
+    boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
 
-        // Pre-allocate buffer for image pixels.
-        intValues = new int[inputImageWidth * inputImageHeight];
+    /**
+     * Drop a reference taken by {@link #retain()}, or the creator's own reference. The last
+     * one closes the interpreters.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            Log.i(TAG, "Last reference released, closing interpreters");
+            destroyClassifier();
+        }
     }
 
     /**
-     * Clean up the resources used by the classifier.
+     * Take an interpreter out of the pool for exclusive use by the calling thread. The results
+     * returned by the slot stay valid until it is handed back through {@link #checkin}.
      */
-    public void destroyClassifier() {
-        tfLite.close();
+    public InferenceSlot checkout() throws InterruptedException {
+        return pool.checkout();
     }
 
+    public void checkin(InferenceSlot slot) {
+        pool.checkin(slot);
+    }
+
+    /**
+     * @return a slot, or null if the calling thread was interrupted while waiting for one.
+     */
+    private InferenceSlot checkoutOrNull() {
+        try {
+            return pool.checkout();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while waiting for an interpreter");
+            return null;
+        }
+    }
+
+    /**
+     * Utilization and queue wait statistics for the interpreters of this classifier.
+     */
+    public InterpreterPool getPool() {
+        return pool;
+    }
 
     /**
      * @param image Bitmap containing the image to be classified. The image can be
      *              of any size, but preprocessing might occur to resize it to the
      *              format expected by the classification process, which can be time
      *              and power consuming.
+     * @return a copy of the best results, since the interpreter goes back to the pool. Use
+     *         {@link #checkout()} to read the results in place instead.
      */
     public Collection<Recognition> doRecognize(Bitmap image) {
-        TensorFlowHelper.convertBitmapToByteBuffer(image, intValues, imgData);
-
-        long startTime = SystemClock.uptimeMillis();
-        // Here's where the magic happens!!!
-        tfLite.run(imgData, confidencePerLabel);
-//        int length = confidencePerLabel.length;
-//        for(int i=0; i< length;i++){
-//            for (int j=0; j < confidencePerLabel[i].length;j++){
-//                Log.w(TAG,"Predicted values:" + i + " " + j +" "+ confidencePerLabel[i][j]);
-//            }
-//        }
-        long endTime = SystemClock.uptimeMillis();
-        Log.d(TAG, "Timecost to run model inference: " + Long.toString(endTime - startTime));
-
-        // Get the results with the highest confidence and map them to their labels
-       return TensorFlowHelper.getBestResults(confidencePerLabel, labels);
+        InferenceSlot slot = checkoutOrNull();
+        if (slot == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return copyOf(slot.recognize(image));
+        } finally {
+            pool.checkin(slot);
+        }
+    }
+
+    /**
+     * @param image a YUV_420_888 camera frame, read in place, so it must stay open until this
+     *              method returns.
+     * @return a copy of the best results.
+     */
+    public Collection<Recognition> doRecognizeYuv(Image image) {
+        InferenceSlot slot = checkoutOrNull();
+        if (slot == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return copyOf(slot.recognizeYuv(image));
+        } finally {
+            pool.checkin(slot);
+        }
     }
 
+    /**
+     * @param nv21 a frame in NV21 layout, such as a copy of a YUV_420_888 camera frame.
+     * @return a copy of the best results.
+     */
+    public Collection<Recognition> doRecognizeNv21(byte[] nv21, int width, int height) {
+        InferenceSlot slot = checkoutOrNull();
+        if (slot == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return copyOf(slot.recognizeNv21(nv21, width, height));
+        } finally {
+            pool.checkin(slot);
+        }
+    }
+
+    private static List<Recognition> copyOf(List<Recognition> results) {
+        List<Recognition> copy = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); ++i) {
+            copy.add(results.get(i).copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Classify a burst of images with as few interpreter invocations as possible.
+     *
+     * @param images Bitmaps to classify, of any size.
+     * @return the best results for each image, in the order of {@code images}.
+     */
+    public List<List<Recognition>> doRecognizeBatch(List<Bitmap> images) {
+        if (images.isEmpty()) {
+            return Collections.emptyList();
+        }
+        InferenceSlot slot = checkoutOrNull();
+        if (slot == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return slot.recognizeBatch(images);
+        } finally {
+            pool.checkin(slot);
+        }
+    }
 }
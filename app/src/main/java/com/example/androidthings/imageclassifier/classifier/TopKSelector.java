@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the K best scores of a model output row without allocating. Label ids are computed
+ * once and the returned {@link Recognition}s are reused by the next call to
+ * {@link #select(float[])}, so callers that keep results around must {@link Recognition#copy()}
+ * them.
+ */
+public class TopKSelector {
+
+    private final List<String> labels;
+    private final String[] ids;
+    private final int maxResults;
+    private final float minConfidence;
+
+    /** Label indices and scores of the current best results, sorted by descending score. */
+    private final int[] topIndices;
+    private final float[] topScores;
+
+    private final Recognition[] holders;
+    private final ArrayList<Recognition> results;
+    private final List<Recognition> resultsView;
+
+    public TopKSelector(List<String> labels, int maxResults, float minConfidence) {
+        if (maxResults < 1) {
+            throw new IllegalArgumentException("Must select at least one result: " + maxResults);
+        }
+        this.labels = labels;
+        this.maxResults = maxResults;
+        this.minConfidence = minConfidence;
+
+        ids = new String[labels.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = String.valueOf(i);
+        }
+        topIndices = new int[maxResults];
+        topScores = new float[maxResults];
+        holders = new Recognition[maxResults];
+        for (int i = 0; i < maxResults; ++i) {
+            holders[i] = new Recognition(null, null, 0f);
+        }
+        results = new ArrayList<>(maxResults);
+        resultsView = Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @param scores one row of model output, one confidence per label.
+     * @return at most K recognitions at or above the minimum confidence, best first.
+     */
+    public List<Recognition> select(float[] scores) {
+        int count = 0;
+        int length = Math.min(scores.length, ids.length);
+        for (int i = 0; i < length; ++i) {
+            float score = scores[i];
+            if (score < minConfidence) {
+                continue;
+            }
+            int position;
+            if (count < maxResults) {
+                position = count++;
+            } else if (score > topScores[maxResults - 1]) {
+                position = maxResults - 1;
+            } else {
+                continue;
+            }
+            // Insertion sort into the small, already sorted, top list.
+            while (position > 0 && topScores[position - 1] < score) {
+                topScores[position] = topScores[position - 1];
+                topIndices[position] = topIndices[position - 1];
+                position--;
+            }
+            topScores[position] = score;
+            topIndices[position] = i;
+        }
+
+        results.clear();
+        for (int i = 0; i < count; ++i) {
+            int index = topIndices[i];
+            holders[i].set(ids[index], labels.get(index), topScores[i]);
+            results.add(holders[i]);
+        }
+        return resultsView;
+    }
+}
@@ -32,6 +32,11 @@ public class CloudIotOptions {
 
     private static final String DEFAULT_BRIDGE_HOSTNAME = "mqtt.googleapis.com";
     private static final short DEFAULT_BRIDGE_PORT = 443;
+    private static final int DEFAULT_MAX_INFLIGHT = 10;
+
+    public static final String AUTH_ALGORITHM_RS256 = "RS256";
+    public static final String AUTH_ALGORITHM_ES256 = "ES256";
+    private static final String DEFAULT_AUTH_ALGORITHM = AUTH_ALGORITHM_RS256;
 
     public static final String UNUSED_ACCOUNT_NAME = "unused";
 
@@ -76,6 +81,17 @@ public class CloudIotOptions {
      */
     private short bridgePort = DEFAULT_BRIDGE_PORT;
 
+    /**
+     * QoS 1 messages that may await a broker acknowledgement at once.
+     */
+    private int maxInflight = DEFAULT_MAX_INFLIGHT;
+
+    /**
+     * Algorithm of the device key and of the JWTs signed with it, RS256 or ES256. The device
+     * must be registered with a certificate of the same type.
+     */
+    private String authAlgorithm = DEFAULT_AUTH_ALGORITHM;
+
     public CloudIotOptions(String projectId, String registryId, String deviceId, String cloudRegion){
         this.projectId = projectId;
         this.registryId = registryId;
@@ -83,6 +99,12 @@ public class CloudIotOptions {
         this.cloudRegion = cloudRegion;
     }
 
+    public CloudIotOptions(String projectId, String registryId, String deviceId, String cloudRegion,
+                           String authAlgorithm) {
+        this(projectId, registryId, deviceId, cloudRegion);
+        this.authAlgorithm = authAlgorithm;
+    }
+
 
 
     public String getBrokerUrl() {
@@ -122,6 +144,14 @@ public class CloudIotOptions {
         return bridgePort;
     }
 
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
+    public String getAuthAlgorithm() {
+        return authAlgorithm;
+    }
+
     private CloudIotOptions() {
     }
 
@@ -130,7 +160,10 @@ public class CloudIotOptions {
                 !TextUtils.isEmpty(registryId) &&
                 !TextUtils.isEmpty(deviceId) &&
                 !TextUtils.isEmpty(cloudRegion) &&
-                !TextUtils.isEmpty(bridgeHostname);
+                !TextUtils.isEmpty(bridgeHostname) &&
+                maxInflight > 0 &&
+                (AUTH_ALGORITHM_RS256.equals(authAlgorithm) ||
+                        AUTH_ALGORITHM_ES256.equals(authAlgorithm));
     }
 
     public void saveToPreferences(SharedPreferences pref) {
@@ -141,6 +174,8 @@ public class CloudIotOptions {
         editor.putString("cloud_region", cloudRegion);
         editor.putString("mqtt_bridge_hostname", bridgeHostname);
         editor.putInt("mqtt_bridge_port", bridgePort);
+        editor.putInt("mqtt_max_inflight", maxInflight);
+        editor.putString("auth_algorithm", authAlgorithm);
         editor.apply();
     }
 
@@ -158,6 +193,8 @@ public class CloudIotOptions {
             options.bridgeHostname = pref.getString("mqtt_bridge_hostname",
                     DEFAULT_BRIDGE_HOSTNAME);
             options.bridgePort = (short) pref.getInt("mqtt_bridge_port", DEFAULT_BRIDGE_PORT);
+            options.maxInflight = pref.getInt("mqtt_max_inflight", DEFAULT_MAX_INFLIGHT);
+            options.authAlgorithm = pref.getString("auth_algorithm", DEFAULT_AUTH_ALGORITHM);
             return options;
         } catch (Exception e) {
             throw new IllegalArgumentException("While processing configuration options", e);
@@ -172,7 +209,7 @@ public class CloudIotOptions {
             if (Log.isLoggable(TAG, Log.INFO)) {
                 HashSet<String> valid = new HashSet<>(Arrays.asList(new String[] {"project_id",
                         "registry_id", "device_id","cloud_region", "mqtt_bridge_hostname",
-                        "mqtt_bridge_port"}));
+                        "mqtt_bridge_port", "mqtt_max_inflight", "auth_algorithm"}));
                 valid.retainAll(bundle.keySet());
                 Log.i(TAG, "Configuring options using the following intent extras: " + valid);
             }
@@ -185,6 +222,8 @@ public class CloudIotOptions {
             result.bridgeHostname = bundle.getString("mqtt_bridge_hostname",
                     original.bridgeHostname);
             result.bridgePort = (short) bundle.getInt("mqtt_bridge_port", original.bridgePort);
+            result.maxInflight = bundle.getInt("mqtt_max_inflight", original.maxInflight);
+            result.authAlgorithm = bundle.getString("auth_algorithm", original.authAlgorithm);
             return result;
         } catch (Exception e) {
             throw new IllegalArgumentException("While processing configuration options", e);
@@ -202,6 +241,8 @@ public class CloudIotOptions {
             && TextUtils.equals(deviceId, o.deviceId)
             && TextUtils.equals(cloudRegion, o.cloudRegion)
             && TextUtils.equals(bridgeHostname, o.bridgeHostname)
-            && o.bridgePort == bridgePort;
+            && o.bridgePort == bridgePort
+            && o.maxInflight == maxInflight
+            && TextUtils.equals(authAlgorithm, o.authAlgorithm);
     }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.iotcore;
+
+import android.util.Log;
+
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a signed JWT ready for connecting to the MQTT bridge. Signing happens inside the
+ * keystore and is slow, so the next token is signed on the executor well before the current
+ * one expires, and connecting normally only reads the cached token.
+ */
+public class JwtTokenManager {
+
+    private static final String TAG = JwtTokenManager.class.getSimpleName();
+
+    /** How long before the current token expires the next one is signed. */
+    private static final long REFRESH_BEFORE_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** A cached token is not handed out for a new connection this close to its expiry. */
+    private static final long MIN_REMAINING_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Told when a new token has been signed. Connections made with the previous one should move
+     * to it before that one expires.
+     */
+    public interface Listener {
+        void onTokenRefreshed(Token token);
+    }
+
+    public static final class Token {
+        private final char[] jwt;
+        private final long expiresAtMillis;
+
+        private Token(char[] jwt, long expiresAtMillis) {
+            this.jwt = jwt;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        public char[] getJwt() {
+            return jwt;
+        }
+
+        /**
+         * @return when the bridge closes connections made with this token, in wall-clock time.
+         */
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+    }
+
+    private final MqttAuthentication auth;
+    private final String projectId;
+    private final ScheduledExecutorService executor;
+    private final Listener listener;
+
+    private Token current;
+    private ScheduledFuture<?> refresh;
+    private boolean stopped;
+
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            Token token;
+            try {
+                token = sign();
+            } catch (GeneralSecurityException | IOException e) {
+                Log.e(TAG, "Could not sign the next token, will try again", e);
+                schedule(RETRY_DELAY_MILLIS);
+                return;
+            }
+            synchronized (JwtTokenManager.this) {
+                if (stopped) {
+                    return;
+                }
+                current = token;
+                scheduleRefresh(token);
+            }
+            listener.onTokenRefreshed(token);
+        }
+    };
+
+    /**
+     * @param executor runs the signing of the next tokens and the listener.
+     */
+    public JwtTokenManager(MqttAuthentication auth, String projectId,
+                           ScheduledExecutorService executor, Listener listener) {
+        this.auth = auth;
+        this.projectId = projectId;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the cached token. A token is only signed on the calling thread for the first
+     * connection, or if refreshing it in the background kept failing.
+     */
+    public synchronized Token getToken() throws GeneralSecurityException, IOException {
+        if (stopped) {
+            throw new IllegalStateException("Token manager is stopped");
+        }
+        if (current == null
+                || current.expiresAtMillis - System.currentTimeMillis() < MIN_REMAINING_MILLIS) {
+            Log.i(TAG, "No usable cached token, signing one now");
+            current = sign();
+            scheduleRefresh(current);
+        }
+        return current;
+    }
+
+    /**
+     * Stop signing tokens. Cannot be restarted.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        current = null;
+        if (refresh != null) {
+            refresh.cancel(false);
+            refresh = null;
+        }
+    }
+
+    private Token sign() throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        DateTime now = new DateTime();
+        char[] jwt = auth.createJwt(projectId, now);
+        Log.d(TAG, "Signed token in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return new Token(jwt, now.plusMinutes(MqttAuthentication.TOKEN_LIFETIME_MINUTES)
+                .getMillis());
+    }
+
+    private void scheduleRefresh(Token token) {
+        schedule(Math.max(0,
+                token.expiresAtMillis - REFRESH_BEFORE_EXPIRY_MILLIS - System.currentTimeMillis()));
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        if (refresh != null) {
+            refresh.cancel(false);
+        }
+        refresh = executor.schedule(refreshTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -16,29 +16,53 @@
 
 package com.example.androidthings.imageclassifier.cloud.iotcore;
 
+import android.content.Context;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.example.androidthings.imageclassifier.cloud.pubsub.CloudPublisher;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.jsonwebtoken.SignatureAlgorithm;
 
 /**
  * Handle publishing sensor data to a Cloud IoT MQTT endpoint.
- *
+ * <p>
+ * There is a single publisher per process, shared by the activity and the service, so the
+ * device key is loaded, the JWT signed and the TLS handshake done once rather than for every
+ * message. Cloud IoT also only allows one connection per device ID: a second client would
+ * disconnect the first one.
+ * <p>
+ * Messages are published without waiting for the broker: up to
+ * {@link CloudIotOptions#getMaxInflight()} of them may await their acknowledgement at once,
+ * and unacknowledged ones are kept on disk so they are sent again after a restart.
+ * <p>
+ * The connection is kept up by a {@link MqttConnectionManager} and never made on the caller's
+ * thread. Messages published while it is down wait for it.
  */
 public class MQTTPublisher implements CloudPublisher {
 
@@ -50,21 +74,71 @@ public class MQTTPublisher implements CloudPublisher {
     // Use mqttQos=1 (at least once delivery), mqttQos=0 (at most once delivery) also supported.
     private static final int MQTT_QOS = 1;
 
-    private MqttClient mqttClient;
+    // How long a publish waits for room in the in-flight window before giving up.
+    private static final long INFLIGHT_WAIT_SECONDS = 30;
+
+    private static final String PERSISTENCE_DIRECTORY = "mqtt";
+
+    // Time without publishes after which the connection may be moved to a new token.
+    private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    // Signs tokens and connects, away from the threads that publish.
+    private final ScheduledExecutorService maintenance =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private MqttConnectionManager connection;
     private CloudIotOptions cloudIotOptions;
     private MqttAuthentication mqttAuth;
-    private AtomicBoolean mReady = new AtomicBoolean(false);
+    private File persistenceDir;
+
+    // Permits for messages awaiting their acknowledgement; replaced when the options change.
+    private Semaphore inflight;
+
+    // Messages published while disconnected. Each holds a permit, which bounds their number.
+    private final ArrayDeque<Delivery> pending = new ArrayDeque<>();
+
+    private volatile long lastPublishMillis;
+
+    // Kept here rather than only in the connection manager, so they carry over to the manager
+    // made by reconfigure().
+    private MqttCallback callback;
+    private final Map<String, Integer> subscriptions = new LinkedHashMap<>();
 
-    public MQTTPublisher(@NonNull CloudIotOptions options) {
-        initialize(options);
+    private MQTTPublisher() {
+    }
+
+    private static class InstanceHolder {
+        private static MQTTPublisher mPublisher = new MQTTPublisher();
+    }
+
+    /**
+     * @param context used to locate the store of unacknowledged messages.
+     * @param options used to connect if the publisher is not connected yet. Once it is, they
+     *                are ignored; use {@link #reconfigure(CloudIotOptions)} to change them.
+     */
+    public static MQTTPublisher getInstance(@NonNull Context context,
+                                            @NonNull CloudIotOptions options) {
+        MQTTPublisher publisher = InstanceHolder.mPublisher;
+        publisher.initializeIfNeeded(context, options);
+        return publisher;
+    }
+
+    private synchronized void initializeIfNeeded(@NonNull Context context,
+                                                 @NonNull CloudIotOptions options) {
+        if (persistenceDir == null) {
+            persistenceDir = new File(context.getApplicationContext().getFilesDir(),
+                    PERSISTENCE_DIRECTORY);
+        }
+        if (cloudIotOptions == null) {
+            initialize(options);
+        }
     }
 
     @Override
-    public void reconfigure(@NonNull CloudIotOptions newOptions) {
+    public synchronized void reconfigure(@NonNull CloudIotOptions newOptions) {
         if (newOptions.equals(cloudIotOptions)) {
             return;
         }
-        mReady.set(false);
         try {
             close();
         } catch (MqttException e) {
@@ -74,7 +148,8 @@ public class MQTTPublisher implements CloudPublisher {
     }
 
     /**
-     * Initialize a Cloud IoT Endpoint given a set of configuration options.
+     * Initialize a Cloud IoT Endpoint given a set of configuration options. The connection is
+     * made in the background.
      *
      * @param options Cloud IoT configuration options.
      */
@@ -91,6 +166,7 @@ public class MQTTPublisher implements CloudPublisher {
         }
         try {
             cloudIotOptions = options;
+            inflight = new Semaphore(options.getMaxInflight());
             Log.i(TAG, "Device Configuration:");
             Log.i(TAG, " Project ID: "+cloudIotOptions.getProjectId());
             Log.i(TAG, "  Region ID: "+cloudIotOptions.getCloudRegion());
@@ -99,12 +175,17 @@ public class MQTTPublisher implements CloudPublisher {
             Log.i(TAG, "MQTT Configuration:");
             Log.i(TAG, "Broker: "+cloudIotOptions.getBridgeHostname()+":"+cloudIotOptions.getBridgePort());
             Log.i(TAG, "Publishing to topic: "+cloudIotOptions.getTopicName());
-            mqttAuth = new MqttAuthentication();
+            Log.i(TAG, "Max in-flight messages: "+cloudIotOptions.getMaxInflight());
+            Log.i(TAG, "Authentication: "+cloudIotOptions.getAuthAlgorithm());
+            boolean ec = CloudIotOptions.AUTH_ALGORITHM_ES256.equals(options.getAuthAlgorithm());
+            mqttAuth = new MqttAuthentication(
+                    ec ? SignatureAlgorithm.ES256 : SignatureAlgorithm.RS256);
             mqttAuth.initialize();
             if( Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
                 try {
                     mqttAuth.exportPublicKey(new File(Environment.getExternalStorageDirectory(),
-                        "cloud_iot_auth_certificate.pem"));
+                        ec ? "cloud_iot_auth_certificate_es256.pem"
+                            : "cloud_iot_auth_certificate.pem"));
                 } catch (GeneralSecurityException | IOException e) {
                     if( e instanceof FileNotFoundException && e.getMessage().contains("Permission denied")) {
                         Log.e(TAG, "Unable to export certificate, may need to reboot to receive WRITE permissions?", e);
@@ -113,85 +194,207 @@ public class MQTTPublisher implements CloudPublisher {
                     }
                 }
             }
-            initializeMqttClient();
-        } catch (MqttException | IOException | GeneralSecurityException e) {
+            final Semaphore window = inflight;
+            final int maxInflight = options.getMaxInflight();
+            connection = new MqttConnectionManager(new MqttAsyncClient(
+                    cloudIotOptions.getBrokerUrl(), cloudIotOptions.getClientId(),
+                    new MqttDefaultFilePersistence(persistenceDir.getAbsolutePath())),
+                    options, mqttAuth, maintenance, new MqttConnectionManager.Listener() {
+                @Override
+                public void onConnected() {
+                    sendPending();
+                }
+
+                @Override
+                public boolean isIdle() {
+                    return window.availablePermits() == maxInflight
+                            && SystemClock.elapsedRealtime() - lastPublishMillis >= IDLE_MILLIS;
+                }
+            });
+            connection.setCallback(callback);
+            for (Map.Entry<String, Integer> subscription : subscriptions.entrySet()) {
+                connection.subscribe(subscription.getKey(), subscription.getValue());
+            }
+            connection.connect();
+        } catch (MqttException | GeneralSecurityException e) {
+            // Tried again on the next getInstance().
+            cloudIotOptions = null;
             throw new IllegalArgumentException("Could not initialize MQTT", e);
         }
     }
 
+    /**
+     * Publish on the shared connection. Only waits when
+     * {@link CloudIotOptions#getMaxInflight()} messages are already unacknowledged; while
+     * disconnected, the message is sent once the connection is back.
+     *
+     * @param listener told once the broker acknowledged the message, or it could not be sent.
+     * @return the token of the message, or null if it is waiting for the connection or could
+     * not be sent.
+     * @throws IllegalStateException if the publisher has not been configured.
+     * @throws IllegalArgumentException if the in-flight window stayed full.
+     */
     @Override
-    public void publish(String gcsFilePath, String label) {
+    public IMqttDeliveryToken publish(String gcsFilePath, String label,
+                                      @Nullable IMqttActionListener listener) {
+        String payload = MessagePayload.createMessagePayload(gcsFilePath, label);
+        Log.d(TAG, "Publishing: "+payload);
+        String topic;
+        int maxInflight;
+        Semaphore window;
+        synchronized (this) {
+            if (cloudIotOptions == null) {
+                throw new IllegalStateException("MQTTPublisher is not configured");
+            }
+            topic = cloudIotOptions.getTopicName();
+            maxInflight = cloudIotOptions.getMaxInflight();
+            window = inflight;
+        }
         try {
-            if (isReady()) {
-                if (mqttClient != null && !mqttClient.isConnected()) {
-                    // if for some reason the mqtt client has disconnected, we should try to connect
-                    // it again.
-                    try {
-                        initializeMqttClient();
-                    } catch (MqttException | IOException | GeneralSecurityException e) {
-                        throw new IllegalArgumentException("Could not initialize MQTT", e);
-                    }
-                }
-                String payload = MessagePayload.createMessagePayload(gcsFilePath, label);
-                Log.d(TAG, "Publishing: "+payload);
-                sendMessage(cloudIotOptions.getTopicName(), payload.getBytes());
+            // Outside the lock, so a full window does not hold up connecting or other senders.
+            if (!window.tryAcquire(INFLIGHT_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalArgumentException("Could not send message: "
+                        + maxInflight + " messages still in flight");
             }
-        } catch (MqttException e) {
-            throw new IllegalArgumentException("Could not send message", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Interrupted while waiting to send message", e);
+        }
+        lastPublishMillis = SystemClock.elapsedRealtime();
+        Delivery delivery = new Delivery(topic, payload.getBytes(), window, listener);
+        synchronized (this) {
+            if (connection == null) {
+                window.release();
+                throw new IllegalStateException("MQTTPublisher is not configured");
+            }
+            if (!connection.isConnected()) {
+                pending.add(delivery);
+                connection.connect();
+                return null;
+            }
+            return send(connection.getClient(), delivery);
         }
     }
 
+    /**
+     * Subscribe now if connected, and again after every reconnect, including the connections
+     * made after {@link #reconfigure(CloudIotOptions)}.
+     */
     @Override
-    public boolean isReady() {
-        return mReady.get();
+    public synchronized void subscribe(String topic, int qos) throws MqttException {
+        subscriptions.put(topic, qos);
+        if (connection != null) {
+            connection.subscribe(topic, qos);
+        }
+    }
+
+    /**
+     * Receive the messages of the subscriptions. Reconnecting after the connection is lost is
+     * taken care of, the callback is only told about it. The callback is kept across
+     * {@link #reconfigure(CloudIotOptions)}.
+     */
+    @Override
+    public synchronized void setCallback(MqttCallback callback) {
+        this.callback = callback;
+        if (connection != null) {
+            connection.setCallback(callback);
+        }
+    }
+
+    /**
+     * @return the manager of the current connection, for its metrics; null if not configured.
+     */
+    public synchronized MqttConnectionManager getConnectionManager() {
+        return connection;
     }
 
     @Override
-    public void close() throws MqttException {
+    public synchronized boolean isReady() {
+        return connection != null && connection.isConnected();
+    }
+
+    @Override
+    public synchronized void close() throws MqttException {
         cloudIotOptions = null;
-        if (mqttClient != null) {
-            if (mqttClient.isConnected()) {
-                mqttClient.disconnect();
+        while (!pending.isEmpty()) {
+            pending.poll().onFailure(null,
+                    new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } finally {
+                connection = null;
             }
-            mqttClient = null;
         }
     }
 
-    private void initializeMqttClient()
-        throws MqttException, IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    /**
+     * @return the shared client. It is not connected again here: if the connection was lost, a
+     * reconnect is scheduled in the background.
+     * @throws IllegalStateException if the publisher has not been configured.
+     */
+    @Override
+    public synchronized IMqttAsyncClient getMqttClient() {
+        if (connection == null) {
+            throw new IllegalStateException("MQTTPublisher is not configured");
+        }
+        connection.connect();
+        return connection.getClient();
+    }
 
-        mqttClient = new MqttClient(cloudIotOptions.getBrokerUrl(),
-            cloudIotOptions.getClientId(), new MemoryPersistence());
+    private IMqttDeliveryToken send(IMqttAsyncClient client, Delivery delivery) {
+        try {
+            return client.publish(delivery.topic, delivery.payload, MQTT_QOS, SHOULD_RETAIN,
+                    null, delivery);
+        } catch (MqttException e) {
+            delivery.onFailure(null, e);
+            return null;
+        }
+    }
 
-        MqttConnectOptions options = new MqttConnectOptions();
-        // Note that the the Google Cloud IoT only supports MQTT 3.1.1, and Paho requires that we
-        // explicitly set this. If you don't set MQTT version, the server will immediately close its
-        // connection to your device.
-        options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
-        options.setUserName(CloudIotOptions.UNUSED_ACCOUNT_NAME);
+    private synchronized void sendPending() {
+        if (connection == null) {
+            return;
+        }
+        Log.i(TAG, "Connected, " + pending.size() + " messages waiting");
+        while (!pending.isEmpty() && connection.isConnected()) {
+            send(connection.getClient(), pending.poll());
+        }
+    }
 
-        // generate the jwt password
-        options.setPassword(mqttAuth.createJwt(cloudIotOptions.getProjectId()));
+    /**
+     * A message holding a permit of the in-flight window until it is acknowledged or fails.
+     */
+    private static class Delivery implements IMqttActionListener {
+        final String topic;
+        final byte[] payload;
+        private final Semaphore window;
+        private final IMqttActionListener listener;
 
-        mqttClient.connect(options);
-        mReady.set(true);
-    }
+        Delivery(String topic, byte[] payload, Semaphore window,
+                 @Nullable IMqttActionListener listener) {
+            this.topic = topic;
+            this.payload = payload;
+            this.window = window;
+            this.listener = listener;
+        }
 
-    @Override
-    public  MqttClient getMqttClient() {
-        if (mqttClient != null && !mqttClient.isConnected()) {
-            // if for some reason the mqtt client has disconnected, we should try to connect
-            // it again.
-            try {
-                initializeMqttClient();
-            } catch (MqttException | IOException | GeneralSecurityException e) {
-                throw new IllegalArgumentException("Could not initialize MQTT", e);
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            window.release();
+            if (listener != null) {
+                listener.onSuccess(asyncActionToken);
             }
         }
-        return mqttClient;
-    }
 
-    private void sendMessage(String mqttTopic, byte[] mqttMessage) throws MqttException {
-        mqttClient.publish(mqttTopic, mqttMessage, MQTT_QOS, SHOULD_RETAIN);
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            window.release();
+            Log.w(TAG, "Message was not delivered", exception);
+            if (listener != null) {
+                listener.onFailure(asyncActionToken, exception);
+            }
+        }
     }
 }
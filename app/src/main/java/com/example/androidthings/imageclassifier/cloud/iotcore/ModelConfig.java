@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.iotcore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable model configuration, parsed from a Cloud IoT Core config payload:
+ * <pre>
+ * {"bucket": "...", "model": "...", "labels": "...",
+ *  "modelGeneration": 1, "labelsGeneration": 1,
+ *  "patch": {"object": "...", "baseGeneration": 1, "sha256": "..."}}
+ * </pre>
+ * or, for a bundle archive, {@code {"bucket": "...", "bundle": "...", "bundleGeneration": 1}}.
+ * Generations are optional. Every config gets a version, increasing in order of arrival.
+ */
+public class ModelConfig {
+
+    private static final AtomicLong sNextVersion = new AtomicLong(1);
+
+    private final long version;
+    private final String bucket;
+    private final String model;
+    private final String labels;
+    private final Long modelGeneration;
+    private final Long labelsGeneration;
+    private final String bundle;
+    private final Long bundleGeneration;
+    private final String patchObject;
+    private final long patchBaseGeneration;
+    private final String patchSha256;
+
+    private ModelConfig(JSONObject json) throws JSONException {
+        version = sNextVersion.getAndIncrement();
+        bucket = json.getString("bucket");
+        bundle = json.has("bundle") ? json.getString("bundle") : null;
+        if (bundle != null) {
+            bundleGeneration = optLong(json, "bundleGeneration");
+            model = null;
+            labels = null;
+            modelGeneration = null;
+            labelsGeneration = null;
+        } else {
+            bundleGeneration = null;
+            model = json.getString("model");
+            labels = json.getString("labels");
+            modelGeneration = optLong(json, "modelGeneration");
+            labelsGeneration = optLong(json, "labelsGeneration");
+        }
+        JSONObject patch = bundle == null ? json.optJSONObject("patch") : null;
+        if (patch != null) {
+            patchObject = patch.getString("object");
+            patchBaseGeneration = patch.getLong("baseGeneration");
+            patchSha256 = patch.getString("sha256");
+        } else {
+            patchObject = null;
+            patchBaseGeneration = 0;
+            patchSha256 = null;
+        }
+    }
+
+    public static ModelConfig parse(String payload) throws JSONException {
+        return new ModelConfig(new JSONObject(payload));
+    }
+
+    private static Long optLong(JSONObject json, String name) throws JSONException {
+        return json.has(name) ? json.getLong(name) : null;
+    }
+
+    /**
+     * Whether both configs designate the same model, which makes applying {@code other} after
+     * this one a no-op. Patch details only describe how to fetch a model and are ignored.
+     * Configs that do not pin every generation are never the same: the current generation of
+     * their objects may have changed in between.
+     */
+    public boolean isSameModel(ModelConfig other) {
+        return other != null
+                && isPinned()
+                && bucket.equals(other.bucket)
+                && equal(model, other.model)
+                && equal(labels, other.labels)
+                && equal(modelGeneration, other.modelGeneration)
+                && equal(labelsGeneration, other.labelsGeneration)
+                && equal(bundle, other.bundle)
+                && equal(bundleGeneration, other.bundleGeneration);
+    }
+
+    /**
+     * @return whether the config names an exact generation of every object it uses.
+     */
+    public boolean isPinned() {
+        return isBundle() ? bundleGeneration != null
+                : modelGeneration != null && labelsGeneration != null;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public boolean isBundle() {
+        return bundle != null;
+    }
+
+    public String getBundle() {
+        return bundle;
+    }
+
+    /** @return the pinned generation, or null to use the current one. */
+    public Long getBundleGeneration() {
+        return bundleGeneration;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getLabels() {
+        return labels;
+    }
+
+    /** @return the pinned generation, or null to use the current one. */
+    public Long getModelGeneration() {
+        return modelGeneration;
+    }
+
+    /** @return the pinned generation, or null to use the current one. */
+    public Long getLabelsGeneration() {
+        return labelsGeneration;
+    }
+
+    public boolean hasPatch() {
+        return patchObject != null;
+    }
+
+    public String getPatchObject() {
+        return patchObject;
+    }
+
+    public long getPatchBaseGeneration() {
+        return patchBaseGeneration;
+    }
+
+    public String getPatchSha256() {
+        return patchSha256;
+    }
+
+    @Override
+    public String toString() {
+        String source = isBundle() ? bundle + "#" + bundleGeneration
+                : model + "#" + modelGeneration + ", " + labels + "#" + labelsGeneration;
+        return "ModelConfig[v" + version + ", gs://" + bucket + ": " + source + "]";
+    }
+}
@@ -37,6 +37,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 
 import javax.security.auth.x500.X500Principal;
@@ -49,7 +50,9 @@ import io.jsonwebtoken.SignatureAlgorithm;
  * This class wraps the storage and access of the authentication key used for Cloud IoT.  One of
  * the driving reasons for this is to leverage the secure key storage on Android Things.
  *
- * This class currently only support RS256 Authentication.
+ * Devices authenticate with RS256 (2048-bit RSA) or ES256 (EC P-256) keys. ES256 signatures are
+ * much cheaper to compute and give shorter tokens, which matters on low-end boards. Each
+ * algorithm has its own key alias, so switching does not destroy the other key.
  */
 
 public class MqttAuthentication {
@@ -57,8 +60,16 @@ public class MqttAuthentication {
   private static final String TAG = MqttAuthentication.class.getSimpleName();
   private static final String DEFAULT_KEYSTORE = "AndroidKeyStore";
   private static final String DEFAULT_ALIAS = "Cloud IoT Authentication";
+  private static final String DEFAULT_EC_ALIAS = "Cloud IoT Authentication EC";
+  private static final String EC_CURVE = "secp256r1";
+
+  /**
+   * Lifetime of the tokens returned by {@link #createJwt(String)}.
+   */
+  public static final int TOKEN_LIFETIME_MINUTES = 60;
   private final String keystoreName;
   private final String keyAlias;
+  private final SignatureAlgorithm algorithm;
 
   private Certificate certificate;
   private PrivateKey privateKey;
@@ -70,6 +81,17 @@ public class MqttAuthentication {
     this(DEFAULT_KEYSTORE, DEFAULT_ALIAS);
   }
 
+  /**
+   * Create a new Cloud IoT Authentication wrapper using the default keystore and the default
+   * alias of the algorithm.
+   *
+   * @param algorithm {@link SignatureAlgorithm#RS256} or {@link SignatureAlgorithm#ES256}
+   */
+  public MqttAuthentication(SignatureAlgorithm algorithm) {
+    this(DEFAULT_KEYSTORE,
+        algorithm == SignatureAlgorithm.ES256 ? DEFAULT_EC_ALIAS : DEFAULT_ALIAS, algorithm);
+  }
+
   /**
    * Create a new Cloud IoT Authentication wrapper using the specified keystore and alias (instead
    * of the defaults)
@@ -78,8 +100,26 @@ public class MqttAuthentication {
    * @param keyAlias the alias in the keystore for Cloud IoT Authentication
    */
   public MqttAuthentication(String keystoreName, String keyAlias) {
+    this(keystoreName, keyAlias, SignatureAlgorithm.RS256);
+  }
+
+  /**
+   * Create a new Cloud IoT Authentication wrapper using the specified keystore, alias and
+   * algorithm.
+   *
+   * @param algorithm {@link SignatureAlgorithm#RS256} or {@link SignatureAlgorithm#ES256}
+   */
+  public MqttAuthentication(String keystoreName, String keyAlias, SignatureAlgorithm algorithm) {
+    if (algorithm != SignatureAlgorithm.RS256 && algorithm != SignatureAlgorithm.ES256) {
+      throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
     this.keystoreName = keystoreName;
     this.keyAlias = keyAlias;
+    this.algorithm = algorithm;
+  }
+
+  public SignatureAlgorithm getAlgorithm() {
+    return algorithm;
   }
 
   public void initialize() {
@@ -124,11 +164,25 @@ public class MqttAuthentication {
   }
 
   /**
-   * Generate a new RSA key pair entry in the Android Keystore by
+   * Generate a new RSA or EC key pair entry in the Android Keystore by
    * using the KeyPairGenerator API. This creates both a KeyPair
    * and a self-signed certificate, both with the same alias
    */
   private void generateAuthenticationKey() throws GeneralSecurityException {
+    if (algorithm == SignatureAlgorithm.ES256) {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+          KeyProperties.KEY_ALGORITHM_EC, keystoreName);
+      kpg.initialize(new KeyGenParameterSpec.Builder(
+          keyAlias,
+          KeyProperties.PURPOSE_SIGN)
+          .setAlgorithmParameterSpec(new ECGenParameterSpec(EC_CURVE))
+          .setCertificateSubject(new X500Principal("CN=unused"))
+          .setDigests(KeyProperties.DIGEST_SHA256)
+          .build());
+
+      kpg.generateKeyPair();
+      return;
+    }
 
     KeyPairGenerator kpg = KeyPairGenerator.getInstance(
         KeyProperties.KEY_ALGORITHM_RSA, keystoreName);
@@ -157,7 +211,8 @@ public class MqttAuthentication {
   }
 
   /**
-   * Returns the PEM-format encoded certificate
+   * Returns the PEM-format encoded certificate, of an RSA or EC key depending on the algorithm.
+   * Register it with the device as RSA_X509_PEM or ES256_X509_PEM respectively.
    */
   public String getCertificatePEM() throws GeneralSecurityException {
     StringBuilder sb = new StringBuilder();
@@ -173,7 +228,15 @@ public class MqttAuthentication {
 
   public char[] createJwt(String projectId)
       throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
-    DateTime now = new DateTime();
+    return createJwt(projectId, new DateTime());
+  }
+
+  /**
+   * Create a token valid for {@link #TOKEN_LIFETIME_MINUTES} from {@code now}, signed with the
+   * algorithm of this wrapper.
+   */
+  public char[] createJwt(String projectId, DateTime now)
+      throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
 
     // Create a JWT to authenticate this device. The device will be disconnected after the token
     // expires, and will have to reconnect with a new token. The audience field should always
@@ -181,9 +244,9 @@ public class MqttAuthentication {
     JwtBuilder jwtBuilder =
         Jwts.builder()
             .setIssuedAt(now.toDate())
-            .setExpiration(now.plusMinutes(60).toDate())
+            .setExpiration(now.plusMinutes(TOKEN_LIFETIME_MINUTES).toDate())
             .setAudience(projectId);
 
-    return jwtBuilder.signWith(SignatureAlgorithm.RS256, privateKey).compact().toCharArray();
+    return jwtBuilder.signWith(algorithm, privateKey).compact().toCharArray();
   }
 }
\ No newline at end of file
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.iotcore;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keeps an MQTT client connected to the Cloud IoT bridge.
+ * <ul>
+ * <li>A lost connection is made again from {@link MqttCallback#connectionLost(Throwable)},
+ * with an exponential backoff with jitter, and only one attempt at a time.</li>
+ * <li>Every connection goes through the same socket factory, so the TLS session of the previous
+ * one is resumed instead of doing a full handshake.</li>
+ * <li>Subscriptions are made again on every connect, the bridge does not keep them.</li>
+ * <li>Connections move to a new JWT while the publisher is idle, before the old one expires.</li>
+ * </ul>
+ * Connecting only happens on the executor.
+ */
+public class MqttConnectionManager {
+
+    private static final String TAG = MqttConnectionManager.class.getSimpleName();
+
+    // Delay before the second attempt after a failure, doubled up to the maximum afterwards.
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    // A connection that lasted this long resets the backoff when it is lost.
+    private static final long STABLE_CONNECTION_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // This many lost connections within the window count as one reconnect storm.
+    private static final int STORM_RECONNECTS = 5;
+    private static final long STORM_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // Time the publisher must be idle before the connection moves to a new token.
+    private static final long IDLE_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    // The connection moves to the new token this long before the old one expires, idle or not.
+    private static final long ROLLOVER_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final long DISCONNECT_QUIESCE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Implemented by the user of the connection. Called without any lock of the manager held.
+     */
+    public interface Listener {
+        /** The client is connected and subscribed again. */
+        void onConnected();
+
+        /** Whether no message is in flight, so the connection can be made again. */
+        boolean isIdle();
+    }
+
+    private final MqttAsyncClient client;
+    private final CloudIotOptions options;
+    private final ScheduledExecutorService executor;
+    private final JwtTokenManager tokenManager;
+    private final Listener listener;
+    private final SSLSocketFactory socketFactory;
+    private final Random jitter = new Random();
+
+    private final Map<String, Integer> subscriptions = new LinkedHashMap<>();
+    private volatile MqttCallback callback;
+
+    // Token of the current connection, null while disconnected.
+    private JwtTokenManager.Token connectedToken;
+    // Token the client last connected with, kept while a rollover takes the connection down.
+    private JwtTokenManager.Token clientToken;
+    private boolean connecting;
+    private boolean closed;
+    private int failedAttempts;
+    private long connectedAtMillis;
+
+    // When the connection was lost, 0 if it was not or has been made again since.
+    private long lostAtNanos;
+    private final ArrayDeque<Long> recentLossesMillis = new ArrayDeque<>();
+    private boolean inStorm;
+
+    private long reconnects;
+    private long totalReconnectNanos;
+    private long maxReconnectNanos;
+    private long storms;
+    private long rollovers;
+
+    private final MqttCallback clientCallback = new MqttCallback() {
+        @Override
+        public void connectionLost(Throwable cause) {
+            onConnectionLost(cause);
+            MqttCallback delegate = callback;
+            if (delegate != null) {
+                delegate.connectionLost(cause);
+            }
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            MqttCallback delegate = callback;
+            if (delegate != null) {
+                delegate.messageArrived(topic, message);
+            }
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            MqttCallback delegate = callback;
+            if (delegate != null) {
+                delegate.deliveryComplete(token);
+            }
+        }
+    };
+
+    /**
+     * @param executor runs the connection attempts and the signing of tokens.
+     */
+    public MqttConnectionManager(MqttAsyncClient client, CloudIotOptions options,
+                                 MqttAuthentication auth, ScheduledExecutorService executor,
+                                 Listener listener) throws GeneralSecurityException {
+        this.client = client;
+        this.options = options;
+        this.executor = executor;
+        this.listener = listener;
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        socketFactory = sslContext.getSocketFactory();
+        tokenManager = new JwtTokenManager(auth, options.getProjectId(), executor,
+                new JwtTokenManager.Listener() {
+            @Override
+            public void onTokenRefreshed(JwtTokenManager.Token token) {
+                rolloverWhenIdle();
+            }
+        });
+        client.setCallback(clientCallback);
+    }
+
+    public IMqttAsyncClient getClient() {
+        return client;
+    }
+
+    /**
+     * Receive the messages of the subscriptions and the loss of the connection. The connection
+     * is made again whatever the callback does.
+     */
+    public void setCallback(MqttCallback callback) {
+        this.callback = callback;
+    }
+
+    public synchronized boolean isConnected() {
+        return connectedToken != null && client.isConnected();
+    }
+
+    /**
+     * Connect in the background, unless connected or already trying to. A pending attempt
+     * keeps its backoff.
+     */
+    public synchronized void connect() {
+        if (!isConnected()) {
+            scheduleConnect(0);
+        }
+    }
+
+    /**
+     * Subscribe now if connected, and again after every connect.
+     */
+    public synchronized void subscribe(String topic, int qos) throws MqttException {
+        subscriptions.put(topic, qos);
+        if (isConnected()) {
+            client.subscribe(topic, qos);
+        } else {
+            scheduleConnect(0);
+        }
+    }
+
+    public synchronized void close() throws MqttException {
+        closed = true;
+        connectedToken = null;
+        tokenManager.stop();
+        try {
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Connections made again after being lost.
+     */
+    public synchronized long getReconnectCount() {
+        return reconnects;
+    }
+
+    /**
+     * Average time from losing the connection to being connected again.
+     */
+    public synchronized float getAverageReconnectMillis() {
+        return reconnects == 0 ? 0f
+                : (float) totalReconnectNanos / reconnects / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized float getMaxReconnectMillis() {
+        return (float) maxReconnectNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Times the connection was lost {@link #STORM_RECONNECTS} times within a minute.
+     */
+    public synchronized long getStormCount() {
+        return storms;
+    }
+
+    /**
+     * Connections made again on purpose to move to a new token.
+     */
+    public synchronized long getRolloverCount() {
+        return rollovers;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("MqttConnectionManager[connected=%b, reconnects=%d, "
+                        + "avgReconnect=%.0fms, maxReconnect=%.0fms, storms=%d, rollovers=%d]",
+                isConnected(), reconnects, getAverageReconnectMillis(), getMaxReconnectMillis(),
+                storms, rollovers);
+    }
+
+    private synchronized void scheduleConnect(long delayMillis) {
+        if (connecting || closed) {
+            return;
+        }
+        connecting = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectNow();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the executor. The token is normally signed already.
+     */
+    private void connectNow() {
+        JwtTokenManager.Token stillConnected;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            stillConnected = client.isConnected() ? clientToken : null;
+        }
+        if (stillConnected != null) {
+            // A rollover could not take the old connection down; carry on with it rather than
+            // leave the manager believing it is disconnected.
+            onConnected(stillConnected);
+            return;
+        }
+        try {
+            final JwtTokenManager.Token token = tokenManager.getToken();
+            client.connect(buildConnectOptions(token), null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    onConnected(token);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    onConnectFailed(exception);
+                }
+            });
+        } catch (MqttException | GeneralSecurityException | IOException
+                | IllegalStateException e) {
+            onConnectFailed(e);
+        }
+    }
+
+    private void onConnected(JwtTokenManager.Token token) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            connecting = false;
+            failedAttempts = 0;
+            connectedToken = token;
+            clientToken = token;
+            connectedAtMillis = SystemClock.elapsedRealtime();
+            if (lostAtNanos != 0) {
+                long elapsed = System.nanoTime() - lostAtNanos;
+                lostAtNanos = 0;
+                reconnects++;
+                totalReconnectNanos += elapsed;
+                maxReconnectNanos = Math.max(maxReconnectNanos, elapsed);
+                Log.i(TAG, "Reconnected in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, "
+                        + this);
+            } else {
+                Log.i(TAG, "Connected");
+            }
+            for (Map.Entry<String, Integer> subscription : subscriptions.entrySet()) {
+                try {
+                    client.subscribe(subscription.getKey(), subscription.getValue());
+                } catch (MqttException e) {
+                    Log.e(TAG, "Could not subscribe to " + subscription.getKey(), e);
+                }
+            }
+        }
+        listener.onConnected();
+    }
+
+    private synchronized void onConnectFailed(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        connecting = false;
+        failedAttempts++;
+        long delay = backoffMillis(failedAttempts);
+        Log.w(TAG, "Could not connect, attempt " + failedAttempts + ", trying again in "
+                + delay + "ms", cause);
+        scheduleConnect(delay);
+    }
+
+    private synchronized void onConnectionLost(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        Log.w(TAG, "Connection lost", cause);
+        long now = SystemClock.elapsedRealtime();
+        connectedToken = null;
+        if (lostAtNanos == 0) {
+            lostAtNanos = System.nanoTime();
+        }
+
+        recentLossesMillis.addLast(now);
+        while (now - recentLossesMillis.peekFirst() > STORM_WINDOW_MILLIS) {
+            recentLossesMillis.removeFirst();
+        }
+        if (recentLossesMillis.size() >= STORM_RECONNECTS) {
+            if (!inStorm) {
+                inStorm = true;
+                storms++;
+                Log.w(TAG, "Reconnect storm: " + recentLossesMillis.size()
+                        + " connections lost within " + STORM_WINDOW_MILLIS + "ms");
+            }
+        } else {
+            inStorm = false;
+        }
+
+        // A connection dropped right after being made is treated as a failed attempt, so a
+        // bridge that keeps closing it is not hammered.
+        if (now - connectedAtMillis >= STABLE_CONNECTION_MILLIS) {
+            failedAttempts = 0;
+        } else {
+            failedAttempts++;
+        }
+        scheduleConnect(backoffMillis(failedAttempts));
+    }
+
+    /**
+     * @return 0 for the first attempt, then a delay doubling with every attempt, of which a
+     * random half is taken so devices dropped together do not reconnect together.
+     */
+    private long backoffMillis(int attempt) {
+        if (attempt == 0) {
+            return 0;
+        }
+        long cap = INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 20);
+        cap = Math.min(cap, MAX_BACKOFF_MILLIS);
+        return cap / 2 + (long) (jitter.nextDouble() * (cap / 2));
+    }
+
+    /**
+     * Move the connection to the token that was just signed once the listener is idle, or
+     * shortly before the token of the connection expires. Runs on the executor.
+     */
+    private void rolloverWhenIdle() {
+        boolean idle = listener.isIdle();
+        synchronized (this) {
+            if (closed || connecting || connectedToken == null) {
+                // A connection being made uses the newest token anyway.
+                return;
+            }
+            boolean due = System.currentTimeMillis()
+                    >= connectedToken.getExpiresAtMillis() - ROLLOVER_DEADLINE_MILLIS;
+            if (!idle && !due) {
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        rolloverWhenIdle();
+                    }
+                }, IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            connecting = true;
+            connectedToken = null;
+            rollovers++;
+        }
+        Log.i(TAG, "Moving the connection to a new token");
+        try {
+            if (client.isConnected()) {
+                client.disconnect(DISCONNECT_QUIESCE_MILLIS).waitForCompletion();
+            }
+        } catch (MqttException e) {
+            Log.w(TAG, "Could not disconnect cleanly", e);
+            try {
+                client.disconnectForcibly(0, DISCONNECT_QUIESCE_MILLIS);
+            } catch (MqttException forced) {
+                Log.w(TAG, "Could not disconnect, keeping the old connection", forced);
+            }
+        }
+        connectNow();
+    }
+
+    private MqttConnectOptions buildConnectOptions(JwtTokenManager.Token token) {
+        MqttConnectOptions connectOptions = new MqttConnectOptions();
+        // Note that the the Google Cloud IoT only supports MQTT 3.1.1, and Paho requires that we
+        // explicitly set this. If you don't set MQTT version, the server will immediately close its
+        // connection to your device.
+        connectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+        connectOptions.setUserName(CloudIotOptions.UNUSED_ACCOUNT_NAME);
+        connectOptions.setMaxInflight(options.getMaxInflight());
+        // Keep the client state, so messages persisted but not acknowledged before a
+        // disconnect or restart are delivered again once connected.
+        connectOptions.setCleanSession(false);
+        // The same factory for every connection lets the TLS session be resumed.
+        connectOptions.setSocketFactory(socketFactory);
+        connectOptions.setPassword(token.getJwt());
+        return connectOptions;
+    }
+}
@@ -18,7 +18,11 @@ package com.example.androidthings.imageclassifier.cloud.pubsub;
 
 import com.example.androidthings.imageclassifier.cloud.iotcore.CloudIotOptions;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
 
 import java.util.List;
 
@@ -26,9 +30,24 @@ public interface CloudPublisher extends AutoCloseable {
 
     boolean isReady();
 
-    void publish(String gcsFilePath, String label);
+    /**
+     * Send a message without waiting for it to be delivered.
+     *
+     * @param listener told once the message was delivered or could not be, may be null.
+     */
+    IMqttDeliveryToken publish(String gcsFilePath, String label, IMqttActionListener listener);
+
+    /**
+     * Subscribe to a topic, and again whenever the connection is made again.
+     */
+    void subscribe(String topic, int qos) throws MqttException;
+
+    /**
+     * Receive the messages of the subscriptions, and be told when the connection is lost.
+     */
+    void setCallback(MqttCallback callback);
 
     void reconfigure(CloudIotOptions options);
 
-    MqttClient getMqttClient();
+    IMqttAsyncClient getMqttClient();
 }
\ No newline at end of file
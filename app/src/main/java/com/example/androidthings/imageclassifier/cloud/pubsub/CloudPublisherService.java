@@ -203,7 +203,7 @@ public class CloudPublisherService extends Service {
     private void initializeIfNeeded() {
         if (mPublisher == null) {
             try {
-                mPublisher = new MQTTPublisher(readOptions(null));
+                mPublisher = MQTTPublisher.getInstance(this, readOptions(null));
             } catch (Throwable t) {
                 Log.e(TAG, "Could not create MQTTPublisher. Will try again later", t);
             }
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.http.javanet.ConnectionFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.SecurityUtils;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.StorageScopes;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide Cloud Storage client. One authenticated {@link Storage} is built from the
+ * service account key and shared by every caller, over a single transport whose keep-alive
+ * connections are reused across requests. The access token is refreshed ahead of its expiry
+ * so requests never wait for it, and uploads run on a small bounded pool.
+ */
+public class GcsClient {
+
+    private static final String TAG = GcsClient.class.getSimpleName();
+
+    /** Password Google uses for every generated p12 service account key. */
+    private static final String P12_PASSWORD = "notasecret";
+    private static final String P12_ALIAS = "privatekey";
+
+    private static final int MAX_CONCURRENT_UPLOADS = 3;
+    /** How long before expiry the access token is refreshed. */
+    private static final long REFRESH_MARGIN_SECONDS = 5 * 60;
+    private static final long REFRESH_RETRY_SECONDS = 30;
+
+    /**
+     * Idle connections kept alive for reuse: one per concurrent upload and model download,
+     * plus one for the token refresh, so a burst never has to reconnect for lack of room.
+     */
+    private static final int KEEP_ALIVE_CONNECTIONS =
+            MAX_CONCURRENT_UPLOADS + ModelDownloader.PARALLEL_DOWNLOADS + 1;
+    /** How long an idle connection is kept; labelled images arrive minutes apart. */
+    private static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Opens every request on a persistent connection. HttpURLConnection takes it from, and
+     * returns it to, the platform pool once the response body has been read to the end.
+     */
+    private static final ConnectionFactory KEEP_ALIVE_CONNECTION_FACTORY =
+            new ConnectionFactory() {
+        @Override
+        public HttpURLConnection openConnection(URL url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty("Connection", "keep-alive");
+            return connection;
+        }
+    };
+
+    /**
+     * Notified on an upload thread when an upload completes.
+     */
+    public interface UploadListener {
+        void onUploaded(File file, String gcsPath);
+
+        void onUploadFailed(File file, IOException e);
+    }
+
+    private Storage storage;
+    private GoogleCredential credential;
+    private ScheduledExecutorService tokenRefresher;
+    private ThreadPoolExecutor uploadExecutor;
+
+    // Lazy-loaded singleton, so only one client and connection pool exist.
+    private GcsClient() {
+    }
+
+    private static class InstanceHolder {
+        private static GcsClient mClient = new GcsClient();
+    }
+
+    public static GcsClient getInstance() {
+        return InstanceHolder.mClient;
+    }
+
+    /**
+     * Build the client from a p12 service account key in the application assets. Later calls
+     * return immediately.
+     */
+    public synchronized void initialize(Context context, String accountId, String keyAsset,
+                                        String applicationName)
+            throws IOException, GeneralSecurityException {
+        if (storage != null) {
+            return;
+        }
+        PrivateKey privateKey;
+        try (InputStream in = context.getAssets().open(keyAsset)) {
+            privateKey = SecurityUtils.loadPrivateKeyFromKeyStore(
+                    SecurityUtils.getPkcs12KeyStore(), in, P12_PASSWORD, P12_ALIAS, P12_PASSWORD);
+        }
+        configureConnectionPool();
+        HttpTransport transport = new NetHttpTransport.Builder()
+                .setConnectionFactory(KEEP_ALIVE_CONNECTION_FACTORY)
+                .build();
+        JsonFactory jsonFactory = new JacksonFactory();
+        credential = new GoogleCredential.Builder()
+                .setTransport(transport)
+                .setJsonFactory(jsonFactory)
+                .setServiceAccountId(accountId)
+                .setServiceAccountPrivateKey(privateKey)
+                .setServiceAccountScopes(
+                        Collections.singletonList(StorageScopes.DEVSTORAGE_FULL_CONTROL))
+                .build();
+        storage = new Storage.Builder(transport, jsonFactory, credential)
+                .setApplicationName(applicationName)
+                .build();
+
+        tokenRefresher = Executors.newSingleThreadScheduledExecutor();
+        uploadExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_UPLOADS, MAX_CONCURRENT_UPLOADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        uploadExecutor.allowCoreThreadTimeOut(true);
+        tokenRefresher.execute(mRefreshToken);
+    }
+
+    /**
+     * Size the platform's HttpURLConnection pool for the connections this client keeps open.
+     * The pool reads these properties when it is first used, so this must run before any
+     * HTTP request of the process; the default of five idle connections is smaller than the
+     * uploads and downloads that may run at once, so some would be closed after every burst.
+     */
+    private static void configureConnectionPool() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(KEEP_ALIVE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", Long.toString(KEEP_ALIVE_MILLIS));
+    }
+
+    private final Runnable mRefreshToken = new Runnable() {
+        @Override
+        public void run() {
+            long delay;
+            try {
+                credential.refreshToken();
+                Long expiresIn = credential.getExpiresInSeconds();
+                delay = expiresIn == null ? REFRESH_RETRY_SECONDS
+                        : Math.max(REFRESH_RETRY_SECONDS, expiresIn - REFRESH_MARGIN_SECONDS);
+                Log.d(TAG, "Access token refreshed, next refresh in " + delay + "s");
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot refresh access token, retrying", e);
+                delay = REFRESH_RETRY_SECONDS;
+            }
+            tokenRefresher.schedule(this, delay, TimeUnit.SECONDS);
+        }
+    };
+
+    /**
+     * @return the shared client; thread-safe.
+     * @throws IllegalStateException if {@link #initialize} has not succeeded.
+     */
+    public synchronized Storage getStorage() {
+        if (storage == null) {
+            throw new IllegalStateException("GcsClient is not initialized");
+        }
+        return storage;
+    }
+
+    /**
+     * Queue the upload of a file. At most {@link #MAX_CONCURRENT_UPLOADS} run at once.
+     */
+    public Future<?> upload(final File file, final String bucket, final String objectName,
+                            final UploadListener listener) {
+        final Storage client = getStorage();
+        return uploadExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                    String contentType = URLConnection.guessContentTypeFromStream(stream);
+                    InputStreamContent content = new InputStreamContent(contentType, stream);
+                    content.setLength(file.length());
+                    StorageObject objectMetadata = new StorageObject();
+                    objectMetadata.setBucket(bucket);
+                    Storage.Objects.Insert insert =
+                            client.objects().insert(bucket, objectMetadata, content);
+                    insert.setName(objectName);
+                    insert.execute();
+                } catch (IOException e) {
+                    listener.onUploadFailed(file, e);
+                    return null;
+                } catch (RuntimeException e) {
+                    // The client throws unchecked exceptions too, e.g. for a revoked token.
+                    // Nothing reads the Future, so they would otherwise vanish.
+                    listener.onUploadFailed(file, new IOException(e));
+                    return null;
+                }
+                listener.onUploaded(file, "gs://" + bucket + "/" + objectName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Number of uploads queued or running.
+     */
+    public int getPendingUploadCount() {
+        ThreadPoolExecutor executor = uploadExecutor;
+        return executor == null ? 0 : executor.getQueue().size() + executor.getActiveCount();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.storage;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads Cloud Storage objects straight to disk. Bytes go through a small buffer into a
+ * {@code .part} file next to the destination, which is renamed over the destination once
+ * complete, so readers never see a partial file. A transfer that fails part way resumes, after
+ * a backoff, with a range request from the bytes already on disk, as long as the object has
+ * not changed.
+ */
+public class ModelDownloader {
+
+    private static final String TAG = ModelDownloader.class.getSimpleName();
+
+    /** Size of each range request. */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    /** Delay before the second attempt, doubled for every further one. */
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+    static final int PARALLEL_DOWNLOADS = 2;
+
+    private final Storage storage;
+    private final ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_DOWNLOADS);
+    private final Random jitter = new Random();
+
+    public ModelDownloader(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Look up the current generation of an object, without downloading it.
+     */
+    public long getGeneration(String bucket, String name) throws IOException {
+        return storage.objects().get(bucket, name).execute().getGeneration();
+    }
+
+    /**
+     * Download an object to {@code destination}, replacing it atomically.
+     *
+     * @param generation generation to download, or null for the current one.
+     * @return the metadata of the generation of the object that was downloaded.
+     */
+    public StorageObject download(String bucket, String name, Long generation, File destination)
+            throws IOException {
+        StorageObject metadata = storage.objects().get(bucket, name)
+                .setGeneration(generation)
+                .execute();
+        long size = metadata.getSize().longValue();
+        // The generation is part of the name, so bytes of an older version are never resumed.
+        File part = new File(destination.getPath() + "." + metadata.getGeneration() + ".part");
+        deleteStaleParts(destination, part);
+
+        IOException failure = null;
+        for (int attempt = 1; part.length() < size && attempt <= MAX_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                backOff(attempt - 1);
+            }
+            try {
+                downloadRemainder(bucket, name, metadata.getGeneration(), part);
+            } catch (IOException e) {
+                failure = e;
+                Log.w(TAG, "Download of " + name + " interrupted at " + part.length() + "/"
+                        + size + " bytes, attempt " + attempt, e);
+            }
+        }
+        if (part.length() != size) {
+            if (part.length() > size) {
+                part.delete();
+            }
+            throw failure != null ? failure
+                    : new IOException("Downloaded " + part.length() + " bytes of " + name
+                            + ", expected " + size);
+        }
+        if (!part.renameTo(destination)) {
+            throw new IOException("Cannot move " + part + " to " + destination);
+        }
+        Log.i(TAG, "Downloaded gs://" + bucket + "/" + name + " (" + size + " bytes) to "
+                + destination);
+        return metadata;
+    }
+
+    /**
+     * Wait before retrying, over a window doubling with every failure of which a random half is
+     * taken, so a flaky link is not hit again right away and devices do not retry together.
+     */
+    private void backOff(int failures) throws IOException {
+        long window = Math.min(MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+        long delay = window / 2 + (long) (jitter.nextDouble() * window / 2);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    private void downloadRemainder(String bucket, String name, Long generation, File part)
+            throws IOException {
+        Storage.Objects.Get get = storage.objects().get(bucket, name);
+        get.setGeneration(generation);
+        MediaHttpDownloader downloader = get.getMediaHttpDownloader();
+        downloader.setDirectDownloadEnabled(false);
+        downloader.setChunkSize(CHUNK_SIZE);
+        downloader.setBytesDownloaded(part.length());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(part, true),
+                BUFFER_SIZE)) {
+            get.executeMediaAndDownloadTo(out);
+        }
+    }
+
+    private static void deleteStaleParts(File destination, File current) {
+        File directory = destination.getAbsoluteFile().getParentFile();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = destination.getName() + ".";
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.startsWith(prefix) && fileName.endsWith(".part")
+                    && !fileName.equals(current.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Download several objects of the same bucket in parallel.
+     *
+     * @param generations generation of each object, or null entries for the current ones.
+     * @return the metadata of each object, in the order of {@code names}.
+     */
+    public List<StorageObject> downloadAll(final String bucket, List<String> names,
+                                           List<Long> generations, List<File> destinations)
+            throws IOException {
+        List<Future<StorageObject>> futures = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final Long generation = generations.get(i);
+            final File destination = destinations.get(i);
+            futures.add(executor.submit(new Callable<StorageObject>() {
+                @Override
+                public StorageObject call() throws IOException {
+                    return download(bucket, name, generation, destination);
+                }
+            }));
+        }
+        List<StorageObject> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<StorageObject> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<StorageObject> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Download a zip archive and unpack its files into {@code directory} as they arrive, in a
+     * single request. Paths inside the archive are flattened, and every file is written to a
+     * {@code .part} file first and renamed once complete.
+     *
+     * @param generation generation to download, or null for the current one.
+     * @return the metadata of the generation of the archive that was downloaded.
+     */
+    public StorageObject downloadBundle(String bucket, String name, Long generation,
+                                        File directory) throws IOException {
+        StorageObject metadata = storage.objects().get(bucket, name)
+                .setGeneration(generation)
+                .execute();
+        Storage.Objects.Get get = storage.objects().get(bucket, name);
+        get.setGeneration(metadata.getGeneration());
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (ZipInputStream zip = new ZipInputStream(
+                new BufferedInputStream(get.executeMediaAsInputStream(), BUFFER_SIZE))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                File destination = new File(directory, new File(entry.getName()).getName());
+                File part = new File(destination.getPath() + ".part");
+                try (OutputStream out = new FileOutputStream(part)) {
+                    int n;
+                    while ((n = zip.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                if (!part.renameTo(destination)) {
+                    throw new IOException("Cannot move " + part + " to " + destination);
+                }
+                Log.i(TAG, "Unpacked " + destination + " (" + destination.length() + " bytes)");
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Rebuild a model by streaming a patch object through {@link ModelPatcher} against a model
+     * that is already on disk.
+     *
+     * @param expectedSha256 hex encoded SHA-256 of the patched model.
+     */
+    public void downloadPatch(String bucket, String patchName, File base, File destination,
+                              String expectedSha256) throws IOException {
+        Storage.Objects.Get get = storage.objects().get(bucket, patchName);
+        try (InputStream patch = new BufferedInputStream(get.executeMediaAsInputStream(),
+                BUFFER_SIZE)) {
+            ModelPatcher.apply(base, patch, destination, expectedSha256);
+        }
+        Log.i(TAG, "Patched " + base + " with gs://" + bucket + "/" + patchName + " into "
+                + destination);
+    }
+
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Rebuilds a model from an older model and a binary patch, reading the patch as a stream.
+ * A patch is the magic {@code MDLP} and a version byte, followed by operations, each starting
+ * with an opcode byte:
+ * <ul>
+ *     <li>{@code 1} COPY: 8 byte offset and 4 byte length of a range of the base file;</li>
+ *     <li>{@code 2} ADD: 4 byte length followed by that many new bytes;</li>
+ *     <li>{@code 0} END.</li>
+ * </ul>
+ * Numbers are big endian. The SHA-256 of the result is checked before it replaces anything.
+ */
+public class ModelPatcher {
+
+    private static final int MAGIC = 0x4d444c50; // "MDLP"
+    private static final int VERSION = 1;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_ADD = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ModelPatcher() {
+    }
+
+    /**
+     * Apply {@code patch} to {@code base} and write the result to {@code destination}, which
+     * is only replaced if the result matches {@code expectedSha256}.
+     *
+     * @param expectedSha256 hex encoded SHA-256 of the patched file.
+     * @throws IOException if the patch is malformed or the result does not match.
+     */
+    public static void apply(File base, InputStream patch, File destination,
+                             String expectedSha256) throws IOException {
+        File part = new File(destination.getPath() + ".patch.part");
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DataInputStream in = new DataInputStream(patch);
+        try (RandomAccessFile source = new RandomAccessFile(base, "r");
+             OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(part), BUFFER_SIZE), digest)) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a model patch");
+            }
+            int op;
+            while ((op = in.readUnsignedByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > source.length()) {
+                        throw new IOException("COPY outside of the base file");
+                    }
+                    source.seek(offset);
+                    while (length > 0) {
+                        int n = Math.min(length, buffer.length);
+                        source.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length -= n;
+                    }
+                } else if (op == OP_ADD) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Negative ADD length");
+                    }
+                    while (length > 0) {
+                        int n = Math.min(length, buffer.length);
+                        in.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length -= n;
+                    }
+                } else {
+                    throw new IOException("Unknown patch operation " + op);
+                }
+            }
+        } catch (EOFException e) {
+            part.delete();
+            throw new IOException("Truncated model patch", e);
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        }
+
+        String actual = toHex(digest.digest());
+        if (!actual.equalsIgnoreCase(expectedSha256)) {
+            part.delete();
+            throw new IOException("Patched model checksum " + actual + " does not match "
+                    + expectedSha256);
+        }
+        if (!part.renameTo(destination)) {
+            part.delete();
+            throw new IOException("Cannot move " + part + " to " + destination);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
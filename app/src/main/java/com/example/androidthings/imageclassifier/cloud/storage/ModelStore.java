@@ -0,0 +1,450 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.cloud.storage;
+
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.classifier.ModelManifest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Local store of downloaded models. Every model lives in its own directory, named after the
+ * Cloud Storage generations of its model and labels objects, so a config that points to a
+ * model that is already on disk can be activated without any network I/O. The least recently
+ * used models are evicted when the store grows over its disk budget. The store remembers which
+ * model was active last so it can be restored on the next start.
+ *
+ * A model comes either from separate model and labels objects, or from a single bundle
+ * archive that holds {@code model.tflite}, {@code labels.txt} and an optional
+ * {@link ModelManifest}.
+ */
+public class ModelStore {
+
+    private static final String TAG = ModelStore.class.getSimpleName();
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String MODEL_FILE = "model.tflite";
+    private static final String LABELS_FILE = "labels.txt";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Identity of a model: the objects it is made of and the generation of each of them.
+     */
+    public static class Key {
+        private final String bucket;
+        private final String model;
+        private final long modelGeneration;
+        private final String labels;
+        private final long labelsGeneration;
+
+        public Key(String bucket, String model, long modelGeneration, String labels,
+                   long labelsGeneration) {
+            this.bucket = bucket;
+            this.model = model;
+            this.modelGeneration = modelGeneration;
+            this.labels = labels;
+            this.labelsGeneration = labelsGeneration;
+        }
+
+        /**
+         * Key of a model delivered as a single bundle archive.
+         */
+        public static Key forBundle(String bucket, String bundle, long generation) {
+            return new Key(bucket, bundle, generation, null, 0);
+        }
+
+        public boolean isBundle() {
+            return labels == null;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public long getModelGeneration() {
+            return modelGeneration;
+        }
+
+        public String getLabels() {
+            return labels;
+        }
+
+        public long getLabelsGeneration() {
+            return labelsGeneration;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && toString().equals(o.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            if (isBundle()) {
+                return "gs://" + bucket + "/" + model + "#" + modelGeneration;
+            }
+            return "gs://" + bucket + "/" + model + "#" + modelGeneration + ",gs://" + bucket
+                    + "/" + labels + "#" + labelsGeneration;
+        }
+    }
+
+    /**
+     * A model stored on disk.
+     */
+    public static class Entry {
+        private final String id;
+        private final String key;
+        private final File directory;
+        private long sizeBytes;
+        private long lastUsedMillis;
+
+        Entry(String id, String key, File directory) {
+            this.id = id;
+            this.key = key;
+            this.directory = directory;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getModelFile() {
+            return new File(directory, MODEL_FILE);
+        }
+
+        public File getLabelsFile() {
+            return new File(directory, LABELS_FILE);
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the manifest that came with the model, or null if it has none.
+         */
+        public ModelManifest readManifest() throws IOException {
+            File file = new File(directory, ModelManifest.FILE_NAME);
+            return file.isFile() ? ModelManifest.read(file) : null;
+        }
+
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        boolean isComplete() {
+            return getModelFile().isFile() && getLabelsFile().isFile();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[" + key + ", " + sizeBytes + " bytes]";
+        }
+    }
+
+    private final File root;
+    private final long budgetBytes;
+    /** Entries by id, in access order, so the first one is the least recently used. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private String activeId;
+
+    /**
+     * @param root        directory the store owns.
+     * @param budgetBytes disk space the stored models may take. The active model is never
+     *                    evicted, even if it alone is over budget.
+     */
+    public ModelStore(File root, long budgetBytes) {
+        this.root = root;
+        this.budgetBytes = budgetBytes;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            Log.e(TAG, "Cannot create model store in " + root);
+        }
+        loadIndex();
+        sweepUncommitted();
+    }
+
+    /**
+     * @return the stored model for {@code key}, or null if it has to be downloaded.
+     */
+    public synchronized Entry find(Key key) {
+        Entry entry = entries.get(idOf(key));
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isComplete()) {
+            Log.w(TAG, "Files of " + entry + " are missing, dropping it");
+            remove(entry);
+            saveIndex();
+            return null;
+        }
+        entry.lastUsedMillis = System.currentTimeMillis();
+        saveIndex();
+        return entry;
+    }
+
+    /**
+     * Find a stored model built from a given generation of a model object, whatever its
+     * labels, for instance to serve as the base of a patch.
+     *
+     * @return the most recently used such model, or null if there is none.
+     */
+    public synchronized Entry findModel(String bucket, String model, long generation) {
+        String prefix = "gs://" + bucket + "/" + model + "#" + generation + ",";
+        Entry found = null;
+        for (Entry entry : entries.values()) {
+            if (entry.key.startsWith(prefix) && entry.isComplete()) {
+                found = entry;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get a directory to download the files of a new model into. The model only becomes
+     * visible to {@link #find(Key)} once {@link #commit(Key)} is called.
+     */
+    public synchronized Entry prepare(Key key) throws IOException {
+        String id = idOf(key);
+        File directory = new File(root, id);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return new Entry(id, key.toString(), directory);
+    }
+
+    /**
+     * Add a model whose files were written to the entry returned by {@link #prepare(Key)},
+     * evicting older models if the store is over budget.
+     */
+    public synchronized Entry commit(Key key) throws IOException {
+        Entry entry = prepare(key);
+        if (!entry.isComplete()) {
+            throw new IOException("Model files missing in " + entry.directory);
+        }
+        entry.sizeBytes = 0;
+        File[] files = entry.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                entry.sizeBytes += file.length();
+            }
+        }
+        entry.lastUsedMillis = System.currentTimeMillis();
+        entries.put(entry.id, entry);
+        evict(entry);
+        saveIndex();
+        return entry;
+    }
+
+    /**
+     * Delete the files of an entry returned by {@link #prepare(Key)} whose download failed.
+     * Committed entries are left alone.
+     */
+    public synchronized void discard(Entry entry) {
+        if (!entries.containsKey(entry.id)) {
+            Log.i(TAG, "Discarding uncommitted " + entry.directory);
+            deleteDirectory(entry.directory);
+        }
+    }
+
+    /**
+     * Forget a stored model that turned out to be unusable and delete its files. If it was the
+     * active one, no model is active any more, so it is not restored on the next start.
+     */
+    public synchronized void drop(Entry entry) {
+        Log.w(TAG, "Dropping unusable " + entry);
+        if (entry.id.equals(activeId)) {
+            activeId = null;
+        }
+        remove(entry);
+        saveIndex();
+    }
+
+    /**
+     * Record {@code entry} as the model in use, which survives restarts and is never evicted.
+     */
+    public synchronized void setActive(Entry entry) {
+        activeId = entry.id;
+        saveIndex();
+    }
+
+    /**
+     * @return the model that was active last, or null if there is none or it is gone.
+     */
+    public synchronized Entry getActive() {
+        Entry entry = activeId == null ? null : entries.get(activeId);
+        return entry != null && entry.isComplete() ? entry : null;
+    }
+
+    public synchronized long getSizeBytes() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.sizeBytes;
+        }
+        return total;
+    }
+
+    private void evict(Entry keep) {
+        long total = getSizeBytes();
+        List<Entry> victims = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            if (entry != keep && !entry.id.equals(activeId)) {
+                victims.add(entry);
+                total -= entry.sizeBytes;
+            }
+        }
+        for (Entry victim : victims) {
+            Log.i(TAG, "Evicting " + victim);
+            remove(victim);
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.id);
+        deleteDirectory(entry.directory);
+    }
+
+    /**
+     * Delete the directories of downloads that were never committed, left behind by a crash
+     * or by entries dropped from the index.
+     */
+    private void sweepUncommitted() {
+        File[] files = root.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && !entries.containsKey(file.getName())) {
+                Log.i(TAG, "Deleting uncommitted " + file);
+                deleteDirectory(file);
+            }
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void loadIndex() {
+        File index = new File(root, INDEX_FILE);
+        if (!index.isFile()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(index)) {
+            byte[] bytes = new byte[(int) index.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            JSONObject json = new JSONObject(new String(bytes, 0, read, UTF_8));
+            // Saved least recently used first, so inserting in order restores the LRU order.
+            JSONArray array = json.getJSONArray("entries");
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                String id = item.getString("id");
+                Entry entry = new Entry(id, item.getString("key"), new File(root, id));
+                entry.sizeBytes = item.getLong("size");
+                entry.lastUsedMillis = item.getLong("lastUsed");
+                if (entry.isComplete()) {
+                    entries.put(id, entry);
+                }
+            }
+            activeId = json.optString("active", null);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Cannot read model store index, starting empty", e);
+            entries.clear();
+            activeId = null;
+        }
+    }
+
+    private void saveIndex() {
+        File index = new File(root, INDEX_FILE);
+        File temp = new File(root, INDEX_FILE + ".tmp");
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries.values()) {
+                array.put(new JSONObject()
+                        .put("id", entry.id)
+                        .put("key", entry.key)
+                        .put("size", entry.sizeBytes)
+                        .put("lastUsed", entry.lastUsedMillis));
+            }
+            JSONObject json = new JSONObject().put("entries", array);
+            if (activeId != null) {
+                json.put("active", activeId);
+            }
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(json.toString().getBytes(UTF_8));
+            }
+            if (!temp.renameTo(index)) {
+                Log.e(TAG, "Cannot replace model store index");
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Cannot write model store index", e);
+        }
+    }
+
+    private static String idOf(Key key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.toString().getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
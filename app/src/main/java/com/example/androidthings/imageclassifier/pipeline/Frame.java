@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A captured frame travelling through the pipeline. The camera image is normally copied into
+ * the frame's own buffer as soon as it arrives, so the {@link Image} can go back to the camera
+ * while later stages work on the copy. A single YUV shot may instead be held in place and
+ * classified straight from its planes. Frames are recycled through a {@link FramePool}.
+ */
+public class Frame {
+
+    /** JPEG bytes, or NV21 pixels for YUV frames. Grown to the largest frame seen. */
+    private byte[] data;
+    private int length;
+    private int format;
+    private int width;
+    private int height;
+    private long timestampNanos;
+
+    /** Camera image held instead of copied, until {@link #detach()} or release. */
+    private Image image;
+
+    /** Set by the preprocessing stage for JPEG frames. */
+    public Bitmap bitmap;
+
+    /** Set by the inference stage. */
+    public Collection<Recognition> results;
+
+    public Frame() {
+    }
+
+    /**
+     * Create a frame whose buffer is allocated up front, so copying a frame of up to
+     * {@code capacity} bytes into it never allocates.
+     */
+    public Frame(int capacity) {
+        data = new byte[capacity];
+    }
+
+    /**
+     * Copy a JPEG or YUV_420_888 image into this frame. YUV planes are repacked to NV21,
+     * honoring their row and pixel strides.
+     */
+    public void copyFrom(Image image) {
+        format = image.getFormat();
+        width = image.getWidth();
+        height = image.getHeight();
+        timestampNanos = image.getTimestamp();
+        Image.Plane[] planes = image.getPlanes();
+        if (format == ImageFormat.JPEG) {
+            ByteBuffer bb = planes[0].getBuffer();
+            length = bb.remaining();
+            ensureCapacity(length);
+            bb.get(data, 0, length);
+        } else if (format == ImageFormat.YUV_420_888) {
+            int frameSize = width * height;
+            length = frameSize + frameSize / 2;
+            ensureCapacity(length);
+
+            ByteBuffer y = planes[0].getBuffer();
+            int yRowStride = planes[0].getRowStride();
+            for (int row = 0; row < height; ++row) {
+                y.position(row * yRowStride);
+                y.get(data, row * width, width);
+            }
+
+            // NV21 stores chroma as interleaved V/U pairs after the luma plane.
+            ByteBuffer u = planes[1].getBuffer();
+            ByteBuffer v = planes[2].getBuffer();
+            int uvRowStride = planes[1].getRowStride();
+            int uvPixelStride = planes[1].getPixelStride();
+            int out = frameSize;
+            for (int row = 0; row < height / 2; ++row) {
+                int index = row * uvRowStride;
+                for (int col = 0; col < width / 2; ++col) {
+                    data[out++] = v.get(index);
+                    data[out++] = u.get(index);
+                    index += uvPixelStride;
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported image format " + format);
+        }
+    }
+
+    /**
+     * Take over a YUV_420_888 image without copying it. The frame closes it when released.
+     * The camera only has a couple of buffers, so this is for captures after which it stays
+     * idle, not for a stream.
+     */
+    public void hold(Image image) {
+        format = image.getFormat();
+        width = image.getWidth();
+        height = image.getHeight();
+        timestampNanos = image.getTimestamp();
+        length = 0;
+        this.image = image;
+    }
+
+    /**
+     * @return the held camera image, or null if the frame has its own copy.
+     */
+    public Image getImage() {
+        return image;
+    }
+
+    /**
+     * Copy a held image into the frame's buffer as NV21 and give it back to the camera, for
+     * when it is needed after the camera delivers another frame.
+     */
+    public void detach() {
+        if (image != null) {
+            copyFrom(image);
+            image.close();
+            image = null;
+        }
+    }
+
+    /**
+     * Copy the image of another frame into this one. Pipeline state is not copied.
+     */
+    public void copyFrom(Frame other) {
+        format = other.format;
+        width = other.width;
+        height = other.height;
+        timestampNanos = other.timestampNanos;
+        length = other.length;
+        ensureCapacity(length);
+        System.arraycopy(other.data, 0, data, 0, length);
+    }
+
+    private void ensureCapacity(int size) {
+        if (data == null || data.length < size) {
+            data = new byte[size];
+        }
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    void reset() {
+        bitmap = null;
+        results = null;
+        if (image != null) {
+            image.close();
+            image = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed number of preallocated {@link Frame}s. The pool size bounds how many frames can be
+ * in flight in the pipeline at once, and therefore its memory use.
+ */
+public class FramePool {
+
+    private final ArrayBlockingQueue<Frame> free;
+
+    public FramePool(int size) {
+        free = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            free.add(new Frame());
+        }
+    }
+
+    /**
+     * @return a free frame, or null if every frame is in flight.
+     */
+    public Frame acquire() {
+        return free.poll();
+    }
+
+    public void release(Frame frame) {
+        if (frame != null) {
+            frame.reset();
+            free.offer(frame);
+        }
+    }
+
+    public int getFreeCount() {
+        return free.size();
+    }
+}
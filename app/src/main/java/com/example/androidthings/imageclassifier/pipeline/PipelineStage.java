@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the frame processing pipeline: a worker thread fed by a bounded queue. When the
+ * queue is full, {@link #submit(Object)} either blocks the producer or evicts the oldest
+ * pending item, depending on the {@link OverflowPolicy}.
+ */
+public class PipelineStage<T> {
+
+    private static final String TAG = PipelineStage.class.getSimpleName();
+
+    public enum OverflowPolicy {
+        /** Wait for room in the queue; nothing is lost but the producer slows down. */
+        BLOCK,
+        /** Drop the oldest pending item to make room; the producer never waits. */
+        DROP_OLDEST
+    }
+
+    /**
+     * Work done by the stage, on its own thread, for every item. The worker owns the item until
+     * it hands it on, which must be the last thing it does: if it throws, the item goes to the
+     * drop listener.
+     */
+    public interface Worker<T> {
+        void process(T item);
+    }
+
+    /**
+     * Notified of items that will never reach the worker, so their resources can be reclaimed.
+     */
+    public interface DropListener<T> {
+        void onDropped(T item);
+    }
+
+    private final String name;
+    private final ArrayBlockingQueue<T> queue;
+    private final OverflowPolicy policy;
+    private final Worker<T> worker;
+    private final DropListener<T> dropListener;
+    private final Thread thread;
+    private volatile boolean running;
+
+    private final AtomicLong processed = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public PipelineStage(String name, int capacity, OverflowPolicy policy, Worker<T> worker,
+                         DropListener<T> dropListener) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.worker = worker;
+        this.dropListener = dropListener;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Hand an item to this stage.
+     *
+     * @return false if the item was dropped right away because the stage is stopped.
+     */
+    public boolean submit(T item) {
+        if (!running) {
+            drop(item);
+            return false;
+        }
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drop(item);
+                return false;
+            }
+        } else {
+            while (!queue.offer(item)) {
+                T oldest = queue.poll();
+                if (oldest != null) {
+                    drop(oldest);
+                }
+            }
+        }
+        if (!running) {
+            // quit() ran while the item was being queued and may already have drained it.
+            drainQueue();
+        }
+        return true;
+    }
+
+    private void loop() {
+        while (running) {
+            T item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) {
+                // Taken while the stage was quitting, after quit() had drained the queue.
+                drop(item);
+                break;
+            }
+            try {
+                worker.process(item);
+                processed.incrementAndGet();
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " failed to process an item", e);
+                drop(item);
+            }
+        }
+        drainQueue();
+    }
+
+    private void drop(T item) {
+        dropped.incrementAndGet();
+        if (dropListener != null) {
+            dropListener.onDropped(item);
+        }
+    }
+
+    /**
+     * Stop the worker. Items still queued, or taken off the queue but not yet processed, are
+     * handed to the drop listener. An item the worker is already processing is left to it.
+     */
+    public void quit() {
+        running = false;
+        thread.interrupt();
+        drainQueue();
+    }
+
+    private void drainQueue() {
+        T item;
+        while ((item = queue.poll()) != null) {
+            drop(item);
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[queued=" + getQueueSize() + ", processed=" + getProcessedCount()
+                + ", dropped=" + getDroppedCount() + "]";
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the last few preview frames in a ring of preallocated frames, so a shutter press can be
+ * served with the frame that was on the sensor when the button went down instead of one
+ * captured after it. Frames are overwritten in place; the ring never allocates once built.
+ */
+public class PreCaptureRing {
+
+    private static final String TAG = PreCaptureRing.class.getSimpleName();
+
+    private final Frame[] frames;
+    /** When each frame was exposed, on the {@link SystemClock#elapsedRealtimeNanos()} clock. */
+    private final long[] exposureNanos;
+    private final boolean timestampRealtime;
+    private int next;
+    private int count;
+
+    /**
+     * @param maxFrames    number of frames to keep at most.
+     * @param maxFrameSize size in bytes of the largest frame that will be stored.
+     * @param budgetBytes  memory the ring may use; the number of frames is reduced to fit it.
+     * @param timestampRealtime whether the sensor timestamps of the images are on the
+     *                          {@link SystemClock#elapsedRealtimeNanos()} clock. If not, the
+     *                          time a frame reaches the ring stands in for it.
+     */
+    public PreCaptureRing(int maxFrames, int maxFrameSize, long budgetBytes,
+                          boolean timestampRealtime) {
+        int capacity = (int) Math.min(maxFrames, budgetBytes / maxFrameSize);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Budget of " + budgetBytes
+                    + " bytes cannot hold a single frame of " + maxFrameSize + " bytes");
+        }
+        if (capacity < maxFrames) {
+            Log.w(TAG, "Memory budget limits the ring to " + capacity + " frames");
+        }
+        frames = new Frame[capacity];
+        exposureNanos = new long[capacity];
+        this.timestampRealtime = timestampRealtime;
+        for (int i = 0; i < capacity; i++) {
+            frames[i] = new Frame(maxFrameSize);
+        }
+    }
+
+    /**
+     * Copy a preview image into the ring, overwriting the oldest frame once it is full.
+     */
+    public synchronized void add(Image image) {
+        // The sensor timestamp is free of callback and copy latency; the arrival time, taken
+        // before the copy, is the closest stand-in when the clocks differ.
+        exposureNanos[next] = timestampRealtime
+                ? image.getTimestamp() : SystemClock.elapsedRealtimeNanos();
+        frames[next].copyFrom(image);
+        next = (next + 1) % frames.length;
+        if (count < frames.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Copy the stored frame exposed closest to {@code timeNanos} into {@code destination}.
+     *
+     * @param timeNanos a time on the {@link SystemClock#elapsedRealtimeNanos()} clock.
+     * @return false if the ring is still empty.
+     */
+    public synchronized boolean copyClosest(long timeNanos, Frame destination) {
+        if (count == 0) {
+            return false;
+        }
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            long distance = Math.abs(exposureNanos[i] - timeNanos);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        destination.copyFrom(frames[best]);
+        return true;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+        next = 0;
+    }
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Memory held by the frame buffers of the ring.
+     */
+    public long getMemoryBytes() {
+        return (long) frames.length * frames[0].getData().length;
+    }
+}